@@ -0,0 +1,680 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Automatic scheduler which places every unscheduled module in the model
+ * using a backtracking search. By default the module with the fewest valid
+ * places left is placed next, and each placement updates the number of valid
+ * places remaining for every other module (forward checking), so a dead end
+ * is found as soon as any module runs out of places.
+ * <p>
+ * Rooms of the same capacity are interchangeable as far as the rules are
+ * concerned, so the search does not choose rooms. It assigns each module a
+ * time and a capacity class, keeping count of the free rooms of each class
+ * at each time, and only picks concrete rooms once a complete timetable has
+ * been found. This avoids exploring every arrangement of modules among
+ * rooms of the same size.
+ * <p>
+ * If the model has a {@link ConflictGraph}, the search keeps a bitset of the
+ * modules at each time, and a module may only go at a time if its
+ * neighbours do not intersect it; placing a module takes that whole time
+ * from the domains of its neighbours, as for its subject year.
+ * <p>
+ * The order in which modules are chosen can be changed with setOrdering, 
+ * and with setSeed ties are broken at random and the times tried for a 
+ * module are shuffled, so that differently configured schedulers explore 
+ * the search space differently; see {@link PortfolioSolver}.
+ */
+public class AutoScheduler {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The model whose unscheduled modules are to be placed. */
+	private ProgramModel model;
+
+	/** The slots of the timetable. */
+	private Slot[][] slots;
+
+	/** Number of times in the timetable. */
+	private int times;
+
+	/** The distinct room capacities, smallest first. */
+	private int[] capacities;
+
+	/** The capacity class of each column of the timetable. */
+	private int[] classOfColumn;
+
+	/** Number of subject years. */
+	private int years;
+
+	/** The modules which were unscheduled when the search began. */
+	private Module[] pending;
+
+	/** The smallest capacity class each pending module fits in. */
+	private int[] smallestClass;
+
+	/** Number of free rooms of each class at each time, at time * classes + class. */
+	private int[] free;
+
+	/** Number of modules of each subject year at each time, at time * years + year. */
+	private int[] yearCount;
+
+	/** The modules which share students, or null if there are none. */
+	private ConflictGraph conflicts;
+
+	/** For each time, a bitset of the ids of the modules there, kept if there are conflicts. */
+	private long[][] atTime;
+
+	/** The number of valid (time, class) places left for each pending module. */
+	private int[] domain;
+
+	/** The (time, class) place of each pending module, or -1 if not yet placed. */
+	private int[] place;
+
+	/**
+	 * Stack of (module, places lost) pairs recording each change made to the
+	 * domains, so that a placement can be undone.
+	 */
+	private int[] trail = new int[64];
+
+	/** Number of entries in use on the trail. */
+	private int trailSize;
+
+	/** Number of pending modules of each subject year not yet placed. */
+	private int[] yearLeft;
+
+	/** The rule for choosing the next module to place. */
+	private Ordering ordering = Ordering.MOST_CONSTRAINED;
+
+	/** Random source for breaking ties and shuffling times, or null to do neither. */
+	private Random random;
+
+	/** The number of backtracks after which the search gives up. */
+	private long maxBacktracks = 1000000;
+
+	/** The number of backtracks made by the last search. */
+	private long backtracks;
+
+	/** Why the last search was found to be impossible before it began, if it was. */
+	private List<String> reasons = new ArrayList<String>();
+
+	/** Whether the search has been asked to stop. */
+	private volatile boolean cancelled;
+
+	/** The listener told how far the search has got, if any. */
+	private ProgressListener progressListener;
+
+	/** Number of search steps between progress reports. */
+	private static final int PROGRESS_EVERY = 256;
+
+	/** Time taken by each auto schedule. */
+	private static final LatencyTimer SCHEDULE_TIMER = Metrics.timer("autoSchedule.run");
+
+	/** Number of auto schedules which found no timetable, or were cancelled. */
+	private static final Counter FAILURES = Metrics.counter("autoSchedule.failures");
+
+	/** Number of backtracks made by all auto schedules. */
+	private static final Counter BACKTRACKS = Metrics.counter("autoSchedule.backtracks");
+
+	/**
+	 * The rules for choosing which module to place next.
+	 */
+	public enum Ordering
+	{
+		/** The module with the fewest valid places left, larger modules first on a tie. */
+		MOST_CONSTRAINED,
+		/** The largest module, the one with the fewest valid places left on a tie. */
+		LARGEST_FIRST,
+		/**
+		 * The module with the fewest valid places left, on a tie the one whose
+		 * subject year has the most modules left to place.
+		 */
+		BUSIEST_YEAR
+	}
+
+	/**
+	 * Listener which is told how many modules the search has placed so far.
+	 */
+	public interface ProgressListener
+	{
+		/**
+		 * Called now and then during the search, on the searching thread.
+		 * @param placed the number of modules currently placed.
+		 * @param total the number of modules to place.
+		 */
+		void progress(int placed, int total);
+	}
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate an auto scheduler for a given model.
+	 * @param model the model to schedule.
+	 */
+	public AutoScheduler(ProgramModel model)
+	{
+		this.model = model;
+		this.slots = model.getSlots();
+		times = slots.length;
+
+		// the distinct capacities, and the class of each room
+		capacities = model.getCapacities();
+		classOfColumn = model.getCapacityClasses();
+	}
+
+	//================================================================================
+    // Get and set methods
+    //================================================================================
+
+	/**
+	 * Set the number of backtracks after which the search gives up.
+	 * @param maxBacktracks the backtrack limit.
+	 */
+	public void setMaxBacktracks(long maxBacktracks)
+	{
+		this.maxBacktracks = maxBacktracks;
+	}
+
+	/**
+	 * Set the rule for choosing the next module to place.
+	 * @param ordering the rule.
+	 */
+	public void setOrdering(Ordering ordering)
+	{
+		this.ordering = ordering;
+	}
+
+	/**
+	 * Get the rule for choosing the next module to place.
+	 * @return the rule.
+	 */
+	public Ordering getOrdering()
+	{
+		return ordering;
+	}
+
+	/**
+	 * Break ties between modules at random, and shuffle the times tried for
+	 * each module, using a given seed, so that the search is repeatable.
+	 * @param seed the seed.
+	 */
+	public void setSeed(long seed)
+	{
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Set the listener to be told how far the search has got.
+	 * @param listener the listener.
+	 */
+	public void setProgressListener(ProgressListener listener)
+	{
+		this.progressListener = listener;
+	}
+
+	/**
+	 * Ask a running search to stop, which it does as if it had failed, and 
+	 * any later search to fail at once. This may be called from any thread.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	/**
+	 * Check whether the scheduler has been asked to stop.
+	 * @return true if cancel has been called.
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Get the reasons the last search was found to be impossible without
+	 * searching, by {@link FeasibilityCheck}.
+	 * @return the reasons, empty if the search went ahead.
+	 */
+	public List<String> getReasons()
+	{
+		return reasons;
+	}
+
+	/**
+	 * Get the number of backtracks made by the last search.
+	 * @return the number of backtracks.
+	 */
+	public long getBacktracks()
+	{
+		return backtracks;
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Place every unscheduled module in the model. Modules which were already
+	 * scheduled are left where they are. If no complete timetable is found, the
+	 * model is left exactly as it was before the search. If another thread 
+	 * changes the model during the search, the modules whose places it took
+	 * are left unscheduled and false is returned. A model which can be
+	 * shown impossible by counting fails at once, with the reasons given by
+	 * getReasons.
+	 * @return true if every module was scheduled, false otherwise.
+	 */
+	public boolean schedule()
+	{
+		long start = Metrics.start();
+		boolean scheduled = search();
+		SCHEDULE_TIMER.stop(start);
+		BACKTRACKS.add(backtracks);
+		if (!scheduled)
+			FAILURES.add(1);
+		return scheduled;
+	}
+
+	/**
+	 * Run the search for schedule.
+	 * @return true if every module was scheduled, false otherwise.
+	 */
+	private boolean search()
+	{
+		// fail at once if counting shows there is no timetable
+		FeasibilityCheck check = new FeasibilityCheck(model);
+		reasons = check.getReasons();
+		if (!check.check() || !solve())
+			return false;
+		return apply();
+	}
+
+	/**
+	 * Search for a time and capacity class for every unscheduled module, 
+	 * without changing the model. The search reads the model when it starts,
+	 * and from then on works only on its own counts, so several may run at 
+	 * once.
+	 * @return true if a complete timetable was found, which apply puts into
+	 * the model.
+	 */
+	boolean solve()
+	{
+		backtracks = 0;
+		trailSize = 0;
+		int classes = capacities.length;
+
+		// collect the modules which have not yet been scheduled
+		ArrayList<Module> list = new ArrayList<Module>();
+		Module[] modules = model.getModules();
+		years = 0;
+		for (int i = 0; i < modules.length; i++)
+		{
+			years = Math.max(years, modules[i].getSubjectYearId() + 1);
+			if (model.slotForModule(modules[i]) == null)
+				list.add(modules[i]);
+		}
+		pending = list.toArray(new Module[0]);
+		int n = pending.length;
+		place = new int[n];
+		Arrays.fill(place, -1);
+		yearLeft = new int[years];
+		for (int i = 0; i < n; i++)
+			yearLeft[pending[i].getSubjectYearId()]++;
+
+		// count the free rooms of each class, and the subject years, at each
+		// time, and note the modules there if students' clashes matter
+		conflicts = model.getConflictGraph();
+		atTime = conflicts == null ? null : new long[times][(modules.length + 63) / 64];
+		free = new int[times * classes];
+		yearCount = new int[times * years];
+		for (int i = 0; i < times; i++)
+			for (int j = 0; j < slots[i].length; j++)
+			{
+				Module m = model.moduleInSlot(slots[i][j]);
+				if (m == null)
+					free[i * classes + classOfColumn[j]]++;
+				else
+				{
+					yearCount[i * years + m.getSubjectYearId()]++;
+					if (atTime != null)
+						atTime[i][m.getId() >>> 6] |= 1L << m.getId();
+				}
+			}
+
+		// count the valid places for each module, failing at once if any has none
+		smallestClass = new int[n];
+		domain = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			smallestClass[i] = classFor(pending[i].getSize());
+			for (int t = 0; t < times; t++)
+				domain[i] += placesAtTime(i, t);
+			if (domain[i] == 0)
+				return false;
+		}
+
+		// depth first search, where depth d places the d-th module chosen
+		int[] chosen = new int[n];
+		int[][] candidates = new int[n][];
+		int[] next = new int[n];
+		int[] trailMark = new int[n];
+		int depth = 0;
+		boolean forward = true;
+		for (long step = 0; depth >= 0; step++)
+		{
+			// stop if cancelled, and report progress now and then
+			if (step % PROGRESS_EVERY == 0)
+			{
+				if (cancelled)
+					return false;
+				if (progressListener != null)
+					progressListener.progress(depth, n);
+			}
+
+			if (forward)
+			{
+				// every module is placed, so the timetable is complete
+				if (depth == n)
+					return true;
+				// choose the next module and order its places
+				chosen[depth] = nextModule();
+				candidates[depth] = candidatePlaces(chosen[depth]);
+				next[depth] = 0;
+			}
+			else
+			{
+				// returning after a failure deeper down, so undo this level
+				undo(chosen[depth], trailMark[depth]);
+				if (++backtracks > maxBacktracks)
+					return false;
+			}
+
+			// try the remaining candidate places until one leaves every
+			// other module with at least one valid place
+			boolean advanced = false;
+			while (next[depth] < candidates[depth].length)
+			{
+				int p = candidates[depth][next[depth]++];
+				trailMark[depth] = trailSize;
+				if (assign(chosen[depth], p))
+				{
+					advanced = true;
+					break;
+				}
+				undo(chosen[depth], trailMark[depth]);
+			}
+
+			// go deeper on success, otherwise backtrack
+			if (advanced)
+			{
+				depth++;
+				forward = true;
+			}
+			else
+			{
+				candidates[depth] = null;
+				depth--;
+				forward = false;
+			}
+		}
+		// search space exhausted
+		return false;
+	}
+
+	/**
+	 * Find the smallest capacity class which can hold a module.
+	 * @param size the size of the module.
+	 * @return the class, or the number of classes if no room is big enough.
+	 */
+	private int classFor(int size)
+	{
+		int c = 0;
+		while (c < capacities.length && capacities[c] < size)
+			c++;
+		return c;
+	}
+
+	/**
+	 * Count the valid places for a pending module at a given time: the
+	 * classes big enough for it with a free room, unless a module of the same
+	 * subject and year, or one sharing its students, is already at that time.
+	 * @param m the index of the module in the pending array.
+	 * @param t the time.
+	 * @return the number of places.
+	 */
+	private int placesAtTime(int m, int t)
+	{
+		if (yearCount[t * years + pending[m].getSubjectYearId()] > 0 || clashAt(m, t))
+			return 0;
+		int count = 0;
+		int classes = capacities.length;
+		for (int c = smallestClass[m]; c < classes; c++)
+			if (free[t * classes + c] > 0)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Check whether a pending module shares students with a module at a time.
+	 * @param m the index of the module in the pending array.
+	 * @param t the time.
+	 * @return true if it does.
+	 */
+	private boolean clashAt(int m, int t)
+	{
+		return atTime != null && conflicts.intersects(pending[m].getId(), atTime[t]);
+	}
+
+	/**
+	 * Find the pending module to place next, according to the ordering. 
+	 * Modules which tie are chosen between at random if there is a seed, 
+	 * otherwise the first is chosen.
+	 * @return the index of the module in the pending array.
+	 */
+	private int nextModule()
+	{
+		int best = -1;
+		int ties = 0;
+		for (int i = 0; i < pending.length; i++)
+		{
+			if (place[i] >= 0)
+				continue;
+			int order = best < 0 ? -1 : compare(i, best);
+			if (order < 0)
+			{
+				best = i;
+				ties = 1;
+			}
+			// keep each of the tied modules with equal chance
+			else if (order == 0 && random != null && random.nextInt(++ties) == 0)
+				best = i;
+		}
+		return best;
+	}
+
+	/**
+	 * Compare two unplaced modules by the ordering.
+	 * @param a the index of one module in the pending array.
+	 * @param b the index of the other.
+	 * @return negative if a should be placed first, positive if b should, 
+	 * and 0 if they tie.
+	 */
+	private int compare(int a, int b)
+	{
+		int bySize = Integer.compare(pending[b].getSize(), pending[a].getSize());
+		int byDomain = Integer.compare(domain[a], domain[b]);
+		switch (ordering)
+		{
+		case LARGEST_FIRST:
+			return bySize != 0 ? bySize : byDomain;
+		case BUSIEST_YEAR:
+			if (byDomain != 0)
+				return byDomain;
+			return Integer.compare(yearLeft[pending[b].getSubjectYearId()],
+					yearLeft[pending[a].getSubjectYearId()]);
+		default:
+			return byDomain != 0 ? byDomain : bySize;
+		}
+	}
+
+	/**
+	 * Get the valid places for a module, as time * classes + class, smallest
+	 * class first, so that large rooms are kept free for the modules which
+	 * need them. With a seed, the times within each class are shuffled.
+	 * @param m the index of the module in the pending array.
+	 * @return the ordered array of places.
+	 */
+	private int[] candidatePlaces(int m)
+	{
+		int classes = capacities.length;
+		int y = pending[m].getSubjectYearId();
+		int[] p = new int[domain[m]];
+		int n = 0;
+		for (int c = smallestClass[m]; c < classes; c++)
+		{
+			int first = n;
+			for (int t = 0; t < times; t++)
+				if (free[t * classes + c] > 0 && yearCount[t * years + y] == 0 && !clashAt(m, t))
+					p[n++] = t * classes + c;
+			// shuffle the places of this class
+			if (random != null)
+				for (int i = n - 1; i > first; i--)
+				{
+					int k = first + random.nextInt(i - first + 1);
+					int swap = p[i];
+					p[i] = p[k];
+					p[k] = swap;
+				}
+		}
+		return p;
+	}
+
+	/**
+	 * Place a pending module at a (time, class) place, and remove the places
+	 * which this rules out from the domains of every other pending module.
+	 * @param m the index of the module in the pending array.
+	 * @param p the place, as time * classes + class.
+	 * @return false if some other module is left with no valid place.
+	 */
+	private boolean assign(int m, int p)
+	{
+		int classes = capacities.length;
+		int t = p / classes;
+		int c = p % classes;
+		int y = pending[m].getSubjectYearId();
+		int id = pending[m].getId();
+		boolean full = free[p] == 1;
+		boolean wipeout = false;
+
+		// work out the places lost by each other module before placing
+		for (int i = 0; i < pending.length && !wipeout; i++)
+		{
+			if (place[i] >= 0 || i == m)
+				continue;
+			int lost = 0;
+			// a module of the same subject and year, or sharing students, 
+			// loses the whole time
+			if (pending[i].getSubjectYearId() == y 
+					|| (conflicts != null && conflicts.conflicts(id, pending[i].getId())))
+				lost = placesAtTime(i, t);
+			// any other module loses this place only if it takes the last room
+			else if (full && c >= smallestClass[i]
+					&& yearCount[t * years + pending[i].getSubjectYearId()] == 0
+					&& !clashAt(i, t))
+				lost = 1;
+
+			if (lost > 0)
+			{
+				domain[i] -= lost;
+				push(i, lost);
+				if (domain[i] == 0)
+					wipeout = true;
+			}
+		}
+
+		// record the placement
+		free[p]--;
+		yearCount[t * years + y]++;
+		if (atTime != null)
+			atTime[t][id >>> 6] |= 1L << id;
+		yearLeft[y]--;
+		place[m] = p;
+		return !wipeout;
+	}
+
+	/**
+	 * Undo the placement of a pending module, restoring the domains changed
+	 * since a given point on the trail.
+	 * @param m the index of the module in the pending array.
+	 * @param mark the size of the trail before the placement.
+	 */
+	private void undo(int m, int mark)
+	{
+		while (trailSize > mark)
+		{
+			trailSize -= 2;
+			domain[trail[trailSize]] += trail[trailSize + 1];
+		}
+		int p = place[m];
+		int y = pending[m].getSubjectYearId();
+		int t = p / capacities.length;
+		int id = pending[m].getId();
+		free[p]++;
+		yearCount[t * years + y]--;
+		if (atTime != null)
+			atTime[t][id >>> 6] &= ~(1L << id);
+		yearLeft[y]++;
+		place[m] = -1;
+	}
+
+	/**
+	 * Give each pending module a free room of its assigned class at its
+	 * assigned time, and put it into the model, once solve has found a 
+	 * complete timetable. The counts of free rooms guarantee there is one,
+	 * unless the model was changed by another thread during the search, so
+	 * each placement is checked and made atomically by the model. The 
+	 * model's listeners are told about all the placements together.
+	 * @return false if some module could not be placed, because the model 
+	 * had changed; the other modules are still placed.
+	 */
+	boolean apply()
+	{
+		boolean complete = true;
+		model.beginBatch();
+		try {
+			for (int i = 0; i < pending.length; i++)
+			{
+				int t = place[i] / capacities.length;
+				int c = place[i] % capacities.length;
+				boolean placed = false;
+				// try each room of the class, in case another thread took one
+				for (int j = 0; j < slots[t].length && !placed; j++)
+					if (classOfColumn[j] == c)
+						placed = model.tryMove(pending[i], null, slots[t][j]);
+				if (!placed)
+					complete = false;
+			}
+		} finally {
+			model.endBatch();
+		}
+		return complete;
+	}
+
+	/**
+	 * Push a change to a module's domain onto the trail.
+	 * @param m the index of the module in the pending array.
+	 * @param lost the number of places it lost.
+	 */
+	private void push(int m, int lost)
+	{
+		if (trailSize + 2 > trail.length)
+			trail = Arrays.copyOf(trail, trail.length * 2);
+		trail[trailSize++] = m;
+		trail[trailSize++] = lost;
+	}
+}
@@ -0,0 +1,273 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless command line entry point. Loads one or more module files through
+ * the {@link ProgramModel}, optionally auto-schedules them, validates the
+ * result and writes the output file, without ever loading AWT or Swing.
+ *
+ * Usage: java BatchMain [-grid file] [-enrolments file] [-auto] [-portfolio searches] [-dsatur] [-optimise millis] [-o output] [input...]
+ *
+ * The times and rooms are read from the grid file, Grid.txt by default. The
+ * modules each student takes are read from the enrolment file,
+ * Enrolments.txt by default, if it exists; modules sharing a student then
+ * clash as well as those of the same subject and year. With no inputs,
+ * ModulesIn.txt is read. The output for each input is the input name with
+ * its last "In" replaced by "Out" (or ".out" added when there is no "In"),
+ * unless -o is given for a single input. With -portfolio, modules are
+ * auto-scheduled by the given number of differently configured searches at
+ * once, taking the first to finish. With -dsatur, they are placed by the
+ * DSatur heuristic instead, which is quick but may leave some unscheduled.
+ * DSatur is also used when -auto or -portfolio is given more modules than
+ * the search can handle, and to place what it can when a search fails.
+ * With -optimise, the modules not given a slot in the input are rearranged
+ * for the given time to reduce wasted seats and clustering. Every problem
+ * found in an input file is printed with its line number. The exit status
+ * is 0 if every file was saved with every module validly scheduled and no
+ * problems, 1 if any module is unscheduled or breaks a rule or any line has
+ * a problem, and 2 on a usage or I/O error.
+ */
+public class BatchMain {
+
+	/** The most modules to place which -auto or -portfolio searches for; DSatur places more. */
+	private final static int SEARCH_LIMIT = 20000;
+
+	/**
+	 * Run the batch over the files given on the command line.
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args)
+	{
+		// make sure nothing can try to open a display
+		System.setProperty("java.awt.headless", "true");
+		System.exit(run(args));
+	}
+
+	/**
+	 * Run the batch over the files given, without exiting, so many batches
+	 * can be run in one JVM.
+	 * @param args the command line arguments.
+	 * @return the exit status.
+	 */
+	public static int run(String[] args)
+	{
+		String grid = ProgramModel.GRID_FILE;
+		String enrolments = ProgramModel.ENROLMENT_FILE;
+		boolean auto = false;
+		int portfolio = 0;
+		boolean dsatur = false;
+		long optimise = 0;
+		String output = null;
+		ArrayList<String> inputs = new ArrayList<String>();
+
+		// read the options and input file names; a bad number is a usage error
+		try {
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-auto"))
+					auto = true;
+				else if (args[i].equals("-portfolio") && i + 1 < args.length)
+					portfolio = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-dsatur"))
+					dsatur = true;
+				else if (args[i].equals("-grid") && i + 1 < args.length)
+					grid = args[++i];
+				else if (args[i].equals("-enrolments") && i + 1 < args.length)
+					enrolments = args[++i];
+				else if (args[i].equals("-optimise") && i + 1 < args.length)
+					optimise = Long.parseLong(args[++i]);
+				else if (args[i].equals("-o") && i + 1 < args.length)
+					output = args[++i];
+				else if (args[i].startsWith("-"))
+					return usage();
+				else
+					inputs.add(args[i]);
+			}
+		} catch (NumberFormatException e) {
+			return usage();
+		}
+		if (portfolio < 0 || optimise < 0)
+			return usage();
+		if (inputs.isEmpty())
+			inputs.add("ModulesIn.txt");
+		if (output != null && inputs.size() > 1)
+			return usage();
+
+		// process each file, keeping the worst status
+		int status = 0;
+		for (String input : inputs)
+			status = Math.max(status,
+					process(grid, enrolments, input, output != null ? output : outputName(input), 
+							auto, portfolio, dsatur, optimise));
+		return status;
+	}
+
+	/**
+	 * Load, optionally schedule, validate and save a single file.
+	 * @param grid the name of the grid file.
+	 * @param enrolments the name of the enrolment file.
+	 * @param input the name of the input file.
+	 * @param output the name of the output file.
+	 * @param auto whether to auto-schedule unscheduled modules.
+	 * @param portfolio the number of searches to auto-schedule with at once,
+	 * or 0 to auto-schedule with one search if auto is set.
+	 * @param dsatur whether to place unscheduled modules by DSatur.
+	 * @param optimise how long to optimise for, in milliseconds, or 0.
+	 * @return the exit status for the file.
+	 */
+	private static int process(String grid, String enrolments, String input, String output, 
+			boolean auto, int portfolio, boolean dsatur, long optimise)
+	{
+		long start = System.nanoTime();
+		ProgramModel model = new ProgramModel(grid, input, enrolments);
+		if (model.getLoadError() != null)
+		{
+			System.err.println(input + ": " + model.getLoadError().getMessage());
+			return 2;
+		}
+		System.out.println(input + ": parsed " + model.getParseThroughput());
+		ConflictGraph conflicts = model.getConflictGraph();
+		if (conflicts != null)
+			System.out.println(input + ": " + conflicts.getStudentCount() + " students, " 
+					+ conflicts.getEdgeCount() + " pairs of modules sharing students" 
+					+ (conflicts.getUnknownCount() > 0 ? ", " + conflicts.getUnknownCount() 
+							+ " enrolments on unknown modules ignored" : ""));
+		
+		// report the problems in the file, and in the enrolment file
+		List<ValidationReport.Issue> issues = model.getValidationReport().getIssues();
+		for (int i = 0; i < issues.size(); i++)
+			System.err.println(input + ": " + issues.get(i));
+		int problems = issues.size();
+		if (conflicts != null)
+		{
+			List<ValidationReport.Issue> skipped = conflicts.getReport().getIssues();
+			for (int i = 0; i < skipped.size(); i++)
+				System.err.println(enrolments + ": " + skipped.get(i));
+			problems += skipped.size();
+		}
+
+		// modules placed in the input file stay where they are
+		ScheduleOptimiser optimiser = new ScheduleOptimiser(model);
+		Module[] modules = model.getModules();
+		for (int i = 0; i < modules.length; i++)
+			if (model.slotForModule(modules[i]) != null)
+				optimiser.fix(modules[i]);
+
+		// count the modules left to place
+		int pending = 0;
+		for (int i = 0; i < modules.length; i++)
+			if (model.slotForModule(modules[i]) == null)
+				pending++;
+
+		// auto-schedule with a portfolio of searches, or with one, if asked 
+		// to, falling back on DSatur if the search fails or is too big
+		boolean construct = dsatur;
+		if (!dsatur && (auto || portfolio > 0) && pending > SEARCH_LIMIT)
+		{
+			System.out.println(input + ": " + pending + " modules to place is too many to search");
+			construct = true;
+		}
+		else if (!dsatur && portfolio > 0)
+		{
+			PortfolioSolver solver = new PortfolioSolver(model, portfolio);
+			long t = System.nanoTime();
+			boolean complete = solver.schedule();
+			System.out.printf("%s: portfolio of %d %s in %.1f ms (%d backtracks)%n",
+					input, portfolio, complete ? "complete, won by " + solver.getWinner() : "failed",
+					(System.nanoTime() - t) / 1e6, solver.getBacktracks());
+			List<String> reasons = solver.getReasons();
+			for (int i = 0; i < reasons.size(); i++)
+				System.out.println(input + ": impossible: " + reasons.get(i));
+			construct = !complete;
+		}
+		else if (!dsatur && auto)
+		{
+			AutoScheduler scheduler = new AutoScheduler(model);
+			long t = System.nanoTime();
+			boolean complete = scheduler.schedule();
+			System.out.printf("%s: auto-schedule %s in %.1f ms (%d backtracks)%n",
+					input, complete ? "complete" : "failed",
+					(System.nanoTime() - t) / 1e6, scheduler.getBacktracks());
+			List<String> reasons = scheduler.getReasons();
+			for (int i = 0; i < reasons.size(); i++)
+				System.out.println(input + ": impossible: " + reasons.get(i));
+			construct = !complete;
+		}
+
+		// place what DSatur can, if asked to or the search did not
+		if (construct)
+		{
+			DSaturScheduler scheduler = new DSaturScheduler(model);
+			long t = System.nanoTime();
+			boolean complete = scheduler.schedule();
+			System.out.printf("%s: DSatur %s in %.1f ms (%d left unscheduled)%n",
+					input, complete ? "complete" : "incomplete",
+					(System.nanoTime() - t) / 1e6, scheduler.getUnplaced().size());
+		}
+
+		// optimise if asked to, printing how the objective fell
+		if (optimise > 0)
+		{
+			double before = optimiser.objective();
+			double after = optimiser.optimise(optimise);
+			System.out.printf("%s: optimised from %.0f to %.0f%n", input, before, after);
+			List<Module> lost = optimiser.getUnplaced();
+			for (int i = 0; i < lost.size(); i++)
+				System.err.println(input + ": " + lost.get(i).getCode()
+						+ " was moved by another change and could not be placed again");
+			for (double[] sample : optimiser.getTrace())
+				System.out.printf("%s:   %6.0f ms  current %.0f  best %.0f%n",
+						input, sample[0], sample[1], sample[2]);
+		}
+
+		// count unscheduled modules and modules which break a rule
+		int unscheduled = 0;
+		int invalid = 0;
+		for (int i = 0; i < modules.length; i++)
+		{
+			if (model.slotForModule(modules[i]) == null)
+				unscheduled++;
+			else if (!model.placementIsValid(modules[i]))
+			{
+				invalid++;
+				System.out.println(input + ": invalid placement: "
+						+ model.lineForModule(modules[i]));
+			}
+		}
+
+		// save the result
+		if (!model.saveToFile(output))
+		{
+			System.err.println(input + ": could not write " + output);
+			return 2;
+		}
+		System.out.printf("%s: %d modules, %d unscheduled, %d invalid, %d problems, written to %s in %.1f ms%n",
+				input, modules.length, unscheduled, invalid, problems, output,
+				(System.nanoTime() - start) / 1e6);
+		return unscheduled == 0 && invalid == 0 && problems == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Work out the default output file name for an input file.
+	 * @param input the name of the input file.
+	 * @return the name of the output file.
+	 */
+	static String outputName(String input)
+	{
+		int slash = Math.max(input.lastIndexOf('/'), input.lastIndexOf('\\'));
+		int i = input.lastIndexOf("In");
+		if (i > slash)
+			return input.substring(0, i) + "Out" + input.substring(i + 2);
+		return input + ".out";
+	}
+
+	/**
+	 * Print how to use the program.
+	 * @return the exit status for a usage error.
+	 */
+	private static int usage()
+	{
+		System.err.println("Usage: java BatchMain [-grid file] [-enrolments file] [-auto] [-portfolio searches] [-dsatur] [-optimise millis] [-o output] [input...]");
+		return 2;
+	}
+}
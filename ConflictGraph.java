@@ -0,0 +1,382 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Graph of the modules which share students, read from an enrolment file,
+ * so that two modules taken by the same student are never timetabled at the
+ * same time. Modules are known by their id in the {@link ModuleTable}.
+ * <p>
+ * Each module's neighbours are held as a sorted list, with the number of
+ * students each pair shares as its weight. A clash with a set of modules,
+ * such as those at one time, held as a bitset of ids, is found from the
+ * list by testing one bit of the set per neighbour, rather than by looking
+ * at students. A module whose neighbours are close together in id also has
+ * its neighbours as a bitset, covering the words between its lowest and
+ * highest neighbour, and its clashes are found by ANDing whole words. Such a
+ * bitset is only kept where it has no more words than the module has
+ * neighbours, so the bitsets never take more memory than the lists,
+ * however the ids are spread.
+ */
+public class ConflictGraph {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** Result of firstConflict when there is no clash. */
+	public static final int NONE = -1;
+
+	/** The number of modules. */
+	private int size;
+
+	/** The number of students in the enrolment file. */
+	private int students;
+
+	/** The number of enrolments on modules which are not in the table. */
+	private int unknown;
+
+	/** Where the neighbours of each module start; those of module id end where id + 1 start. */
+	private int[] offsets;
+
+	/** The neighbours of every module, each module's in increasing order. */
+	private int[] neighbours;
+
+	/** The number of students shared with each neighbour, alongside neighbours. */
+	private int[] weights;
+
+	/** The words of each module's neighbour bitset, or null if it has none. */
+	private long[][] rows;
+
+	/** The index of the first word of each module's neighbour bitset. */
+	private int[] firstWord;
+
+	/** The problems found in the enrolment file. */
+	private ValidationReport report = new ValidationReport();
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate a graph from its edges, given as sorted, distinct pairs.
+	 * @param size the number of modules.
+	 * @param edges each edge as lower id << 32 | higher id, sorted.
+	 * @param edgeWeights the weight of each edge.
+	 * @param edgeCount the number of edges.
+	 */
+	private ConflictGraph(int size, long[] edges, int[] edgeWeights, int edgeCount)
+	{
+		this.size = size;
+
+		// count the neighbours of each module, then fill in both ends of
+		// each edge; as the edges are sorted, each list comes out sorted
+		offsets = new int[size + 1];
+		for (int e = 0; e < edgeCount; e++)
+		{
+			offsets[(int) (edges[e] >>> 32) + 1]++;
+			offsets[(int) edges[e] + 1]++;
+		}
+		for (int i = 0; i < size; i++)
+			offsets[i + 1] += offsets[i];
+		neighbours = new int[offsets[size]];
+		weights = new int[offsets[size]];
+		int[] next = Arrays.copyOf(offsets, size);
+		for (int e = 0; e < edgeCount; e++)
+		{
+			int a = (int) (edges[e] >>> 32);
+			int b = (int) edges[e];
+			neighbours[next[a]] = b;
+			weights[next[a]++] = edgeWeights[e];
+			neighbours[next[b]] = a;
+			weights[next[b]++] = edgeWeights[e];
+		}
+
+		// set the bits of the neighbours of each module whose neighbours
+		// are dense enough for a bitset to be no bigger than its list
+		rows = new long[size][];
+		firstWord = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			if (offsets[i] == offsets[i + 1])
+				continue;
+			int low = neighbours[offsets[i]] >>> 6;
+			int high = neighbours[offsets[i + 1] - 1] >>> 6;
+			if (high - low + 1 > offsets[i + 1] - offsets[i])
+				continue;
+			long[] row = new long[high - low + 1];
+			for (int k = offsets[i]; k < offsets[i + 1]; k++)
+				row[(neighbours[k] >>> 6) - low] |= 1L << neighbours[k];
+			rows[i] = row;
+			firstWord[i] = low;
+		}
+	}
+
+	/**
+	 * Read an enrolment file, made up of lines of the form "student code
+	 * code ...", giving the modules each student takes. A student may be on
+	 * several lines. Blank lines and lines starting with # are ignored, as
+	 * are codes which are not in the table, which are only counted. A line
+	 * with a student but no codes is reported, and skipped.
+	 * @param fileName the name of the enrolment file.
+	 * @param table the modules of the timetable.
+	 * @return the graph of the modules which share students.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static ConflictGraph load(String fileName, ModuleTable table) throws IOException
+	{
+		// read each enrolment as student << 32 | module
+		HashMap<String, Integer> studentIds = new HashMap<String, Integer>();
+		ValidationReport report = new ValidationReport();
+		long[] enrolments = new long[1024];
+		int count = 0;
+		int unknown = 0;
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			int n = 0;
+			while ((line = in.readLine()) != null)
+			{
+				n++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] ln = line.split("\\s+");
+				if (ln.length < 2)
+				{
+					report.add(n, ValidationReport.Kind.MALFORMED,
+							"student " + ln[0] + " has no modules");
+					continue;
+				}
+				Integer student = studentIds.get(ln[0]);
+				if (student == null)
+				{
+					student = studentIds.size();
+					studentIds.put(ln[0], student);
+				}
+				for (int i = 1; i < ln.length; i++)
+				{
+					int id = table.find(ln[i]);
+					if (id == ModuleTable.NONE)
+					{
+						unknown++;
+						continue;
+					}
+					if (count == enrolments.length)
+						enrolments = Arrays.copyOf(enrolments, count * 2);
+					enrolments[count++] = (long) student << 32 | id;
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		// sorting groups each student's modules together, in id order; every
+		// pair of a student's modules, once each, is an edge
+		Arrays.sort(enrolments, 0, count);
+		long[] pairs = new long[1024];
+		int pairCount = 0;
+		int[] taken = new int[16];
+		for (int start = 0; start < count; )
+		{
+			long student = enrolments[start] >>> 32;
+			int k = 0;
+			int end = start;
+			for (; end < count && enrolments[end] >>> 32 == student; end++)
+			{
+				int id = (int) enrolments[end];
+				if (k > 0 && taken[k - 1] == id)
+					continue;
+				if (k == taken.length)
+					taken = Arrays.copyOf(taken, k * 2);
+				taken[k++] = id;
+			}
+			start = end;
+			for (int a = 0; a < k; a++)
+				for (int b = a + 1; b < k; b++)
+				{
+					if (pairCount == pairs.length)
+						pairs = Arrays.copyOf(pairs, pairCount * 2);
+					pairs[pairCount++] = (long) taken[a] << 32 | taken[b];
+				}
+		}
+
+		// sorting brings the copies of each pair together, and the number of
+		// copies is the number of students the two modules share
+		Arrays.sort(pairs, 0, pairCount);
+		int edgeCount = 0;
+		int[] edgeWeights = new int[pairCount];
+		for (int i = 0; i < pairCount; i++)
+		{
+			if (edgeCount > 0 && pairs[edgeCount - 1] == pairs[i])
+				edgeWeights[edgeCount - 1]++;
+			else
+			{
+				pairs[edgeCount] = pairs[i];
+				edgeWeights[edgeCount++] = 1;
+			}
+		}
+
+		ConflictGraph graph = new ConflictGraph(table.size(), pairs, edgeWeights, edgeCount);
+		graph.students = studentIds.size();
+		graph.unknown = unknown;
+		graph.report = report;
+		return graph;
+	}
+
+	//================================================================================
+    // Get methods
+    //================================================================================
+
+	/**
+	 * Get the problems found in the enrolment file: lines which give a
+	 * student but no modules, and were skipped.
+	 * @return the report.
+	 */
+	public ValidationReport getReport()
+	{
+		return report;
+	}
+
+	/**
+	 * Get the number of modules in the graph.
+	 * @return the number of modules.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get the number of students in the enrolment file.
+	 * @return the number of students.
+	 */
+	public int getStudentCount()
+	{
+		return students;
+	}
+
+	/**
+	 * Get the number of enrolments on modules which are not in the timetable,
+	 * and so were ignored.
+	 * @return the number of enrolments.
+	 */
+	public int getUnknownCount()
+	{
+		return unknown;
+	}
+
+	/**
+	 * Get the number of pairs of modules which share students.
+	 * @return the number of edges.
+	 */
+	public int getEdgeCount()
+	{
+		return neighbours.length / 2;
+	}
+
+	/**
+	 * Get the number of modules which share students with a module.
+	 * @param id the module id.
+	 * @return the number of neighbours.
+	 */
+	public int getDegree(int id)
+	{
+		return offsets[id + 1] - offsets[id];
+	}
+
+	/**
+	 * Get one of the modules which share students with a module.
+	 * @param id the module id.
+	 * @param k the position of the neighbour, from 0 to the degree, in
+	 * increasing order of id.
+	 * @return the id of the neighbour.
+	 */
+	public int getNeighbour(int id, int k)
+	{
+		return neighbours[offsets[id] + k];
+	}
+
+	/**
+	 * Get the number of students two modules share.
+	 * @param a one module id.
+	 * @param b the other module id.
+	 * @return the number of students, 0 if they do not clash.
+	 */
+	public int weight(int a, int b)
+	{
+		int k = Arrays.binarySearch(neighbours, offsets[a], offsets[a + 1], b);
+		return k < 0 ? 0 : weights[k];
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Check whether two modules share students.
+	 * @param a one module id.
+	 * @param b the other module id.
+	 * @return true if they may not be at the same time.
+	 */
+	public boolean conflicts(int a, int b)
+	{
+		long[] row = rows[a];
+		if (row == null)
+			return Arrays.binarySearch(neighbours, offsets[a], offsets[a + 1], b) >= 0;
+		int w = (b >>> 6) - firstWord[a];
+		return w >= 0 && w < row.length && (row[w] & (1L << b)) != 0;
+	}
+
+	/**
+	 * Check whether a module shares students with any module of a set.
+	 * @param id the module id.
+	 * @param set bitset of module ids, with at least (size + 63) / 64 words.
+	 * @return true if the module clashes with a module of the set.
+	 */
+	public boolean intersects(int id, long[] set)
+	{
+		long[] row = rows[id];
+		if (row == null)
+		{
+			// test the bit of each neighbour
+			for (int k = offsets[id]; k < offsets[id + 1]; k++)
+				if ((set[neighbours[k] >>> 6] & (1L << neighbours[k])) != 0)
+					return true;
+			return false;
+		}
+		int w = firstWord[id];
+		for (int k = 0; k < row.length; k++)
+			if ((row[k] & set[w + k]) != 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Find the first module of a set which shares students with a module.
+	 * @param id the module id.
+	 * @param set bitset of module ids, with at least (size + 63) / 64 words.
+	 * @return the id of the module it clashes with, or NONE.
+	 */
+	public int firstConflict(int id, long[] set)
+	{
+		long[] row = rows[id];
+		if (row == null)
+		{
+			for (int k = offsets[id]; k < offsets[id + 1]; k++)
+				if ((set[neighbours[k] >>> 6] & (1L << neighbours[k])) != 0)
+					return neighbours[k];
+			return NONE;
+		}
+		int w = firstWord[id];
+		for (int k = 0; k < row.length; k++)
+		{
+			long both = row[k] & set[w + k];
+			if (both != 0)
+				return (w + k) * 64 + Long.numberOfTrailingZeros(both);
+		}
+		return NONE;
+	}
+}
@@ -0,0 +1,74 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running total, such as a number of bytes read or of failed runs. Counters
+ * are made through {@link Metrics}, and count nothing unless metrics are
+ * enabled.
+ */
+public class Counter implements CounterMBean {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The name of the total. */
+	private String name;
+
+	/** The total. */
+	private LongAdder count = new LongAdder();
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate a counter.
+	 * @param name the name of the total.
+	 */
+	Counter(String name)
+	{
+		this.name = name;
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Add to the total, if metrics are enabled.
+	 * @param n the amount to add.
+	 */
+	public void add(long n)
+	{
+		if (Metrics.ENABLED)
+			count.add(n);
+	}
+
+	/**
+	 * Get the name of the total.
+	 * @return the name.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public void reset()
+	{
+		count.reset();
+	}
+
+	/**
+	 * Describe the counter in one line, for the log.
+	 * @return the description.
+	 */
+	public String toString()
+	{
+		return String.format("%-32s count %10d", name, getCount());
+	}
+}
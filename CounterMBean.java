@@ -0,0 +1,17 @@
+/**
+ * Management interface of a {@link Counter}, through which JMX clients read
+ * a running total.
+ */
+public interface CounterMBean {
+
+	/**
+	 * Get the total counted.
+	 * @return the total.
+	 */
+	long getCount();
+
+	/**
+	 * Set the total back to zero.
+	 */
+	void reset();
+}
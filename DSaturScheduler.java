@@ -0,0 +1,452 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fast constructive scheduler which treats choosing times as colouring a
+ * graph, using the DSatur heuristic. Modules are the vertices. Two modules
+ * are joined if they may not be at the same time: each subject year is a
+ * clique, and if there is a {@link ConflictGraph}, modules sharing students
+ * are joined too. The times are the colours.
+ * <p>
+ * The module whose saturation is highest is placed next. Its saturation is
+ * the number of times ruled out by modules already placed. Ties go to the
+ * larger module, then the one with more neighbours. The unplaced modules
+ * are kept in a heap keyed on these, and a placement only raises the keys
+ * of the placed module's neighbours. Each module is put at the earliest
+ * time it can go with a free room of the smallest class big enough, and is
+ * given that room straight away.
+ * <p>
+ * Nothing is ever undone, so the time taken grows with the number of
+ * modules and clashing pairs, and the number of times, rather than
+ * exponentially. This makes it a fallback for inputs too large for
+ * {@link AutoScheduler}, and a quick starting timetable for the
+ * {@link ScheduleOptimiser}. A module which has no valid slot by the time
+ * it is chosen is left unscheduled, as is one whose slot is taken by
+ * another thread before it is placed. Modules which were already scheduled
+ * stay where they are.
+ */
+public class DSaturScheduler {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** Entry for an unplaced module, or a module not in the heap. */
+	private final static int NONE = -1;
+
+	/** Time taken by each DSatur construction. */
+	private final static LatencyTimer DSATUR_TIMER = Metrics.timer("dsatur.run");
+
+	/** Number of DSatur constructions which left modules unscheduled. */
+	private final static Counter FAILURES = Metrics.counter("dsatur.failures");
+
+	/** The model whose unscheduled modules are to be placed. */
+	private ProgramModel model;
+
+	/** The details of the modules. */
+	private ModuleTable table;
+
+	/** The modules which share students, or null if there are none. */
+	private ConflictGraph conflicts;
+
+	/** The slots of the timetable. */
+	private Slot[][] slots;
+
+	/** Number of times in the timetable. */
+	private int times;
+
+	/** Number of rooms. */
+	private int cols;
+
+	/** The distinct room capacities, smallest first. */
+	private int[] capacities;
+
+	/** The capacity class of each column of the timetable. */
+	private int[] classOfColumn;
+
+	/** Number of words in each module's bitset of ruled-out times. */
+	private int words;
+
+	/** The times ruled out for each module, as words * id + word. */
+	private long[] ruledOut;
+
+	/** The number of times ruled out for each module. */
+	private int[] saturation;
+
+	/** The number of modules each module may not be at the same time as. */
+	private int[] degree;
+
+	/** The slot index chosen for each module, or NONE. */
+	private int[] place;
+
+	/** The free columns at each time of each class, listed at columnStart[time * classes + class]. */
+	private int[] freeColumns;
+
+	/** Where the free columns of each time and class start in freeColumns. */
+	private int[] columnStart;
+
+	/** Number of free rooms of each class at each time, at time * classes + class. */
+	private int[] free;
+
+	/** The unplaced modules of each subject year, listed from yearStart[year]. */
+	private int[] yearMembers;
+
+	/** Where each subject year's modules start in yearMembers. */
+	private int[] yearStart;
+
+	/** Where each subject year's unplaced modules end in yearMembers. */
+	private int[] yearEnd;
+
+	/** The position of each module in yearMembers. */
+	private int[] yearPosition;
+
+	/** Binary max-heap of the unplaced modules, by the placement order. */
+	private int[] heap;
+
+	/** Number of modules in the heap. */
+	private int heapSize;
+
+	/** The position of each module in the heap, or NONE. */
+	private int[] heapPosition;
+
+	/** The modules which could not be placed by the last run. */
+	private ArrayList<Module> unplaced = new ArrayList<Module>();
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate a DSatur scheduler for a given model.
+	 * @param model the model to schedule.
+	 */
+	public DSaturScheduler(ProgramModel model)
+	{
+		this.model = model;
+		this.slots = model.getSlots();
+		times = slots.length;
+		cols = slots[0].length;
+		words = (times + 63) / 64;
+		capacities = model.getCapacities();
+		classOfColumn = model.getCapacityClasses();
+	}
+
+	//================================================================================
+    // Get methods
+    //================================================================================
+
+	/**
+	 * Get the modules which the last run could not place.
+	 * @return the modules, in the order they were given up on.
+	 */
+	public List<Module> getUnplaced()
+	{
+		return unplaced;
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Place as many of the unscheduled modules in the model as the heuristic
+	 * can. The model's listeners are told about all the placements together.
+	 * @return true if every module was scheduled, otherwise false, with the
+	 * modules left unscheduled given by getUnplaced.
+	 */
+	public boolean schedule()
+	{
+		long start = Metrics.start();
+		colour();
+		apply();
+		DSATUR_TIMER.stop(start);
+		if (!unplaced.isEmpty())
+			FAILURES.add(1);
+		return unplaced.isEmpty();
+	}
+
+	/**
+	 * Choose a slot for every unscheduled module it can, without changing
+	 * the model.
+	 */
+	private void colour()
+	{
+		unplaced.clear();
+		table = model.getModuleTable();
+		conflicts = model.getConflictGraph();
+		Module[] modules = model.getModules();
+		int n = modules.length;
+		int classes = capacities.length;
+		ruledOut = new long[n * words];
+		saturation = new int[n];
+		place = new int[n];
+		Arrays.fill(place, NONE);
+
+		// list the free rooms of each class at each time, and note which
+		// modules are already scheduled
+		boolean[] scheduled = new boolean[n];
+		boolean[] taken = new boolean[times * cols];
+		columnStart = new int[times * classes + 1];
+		freeColumns = new int[times * cols];
+		free = new int[times * classes];
+		for (int t = 0; t < times; t++)
+			for (int j = 0; j < cols; j++)
+			{
+				Module m = model.moduleInSlot(slots[t][j]);
+				if (m != null)
+				{
+					scheduled[m.getId()] = true;
+					taken[t * cols + j] = true;
+				}
+				else
+					columnStart[t * classes + classOfColumn[j] + 1]++;
+			}
+		for (int i = 0; i < times * classes; i++)
+			columnStart[i + 1] += columnStart[i];
+		for (int t = 0; t < times; t++)
+			for (int j = 0; j < cols; j++)
+				if (!taken[t * cols + j])
+				{
+					int tc = t * classes + classOfColumn[j];
+					freeColumns[columnStart[tc] + free[tc]++] = j;
+				}
+
+		// list the unscheduled modules of each subject year
+		int years = table.getSubjectYearCount();
+		yearStart = new int[years + 1];
+		for (int i = 0; i < n; i++)
+			if (!scheduled[i])
+				yearStart[table.getSubjectYearId(i) + 1]++;
+		for (int y = 0; y < years; y++)
+			yearStart[y + 1] += yearStart[y];
+		yearEnd = Arrays.copyOf(yearStart, years);
+		yearMembers = new int[yearStart[years]];
+		yearPosition = new int[n];
+		for (int i = 0; i < n; i++)
+			if (!scheduled[i])
+			{
+				int y = table.getSubjectYearId(i);
+				yearPosition[i] = yearEnd[y];
+				yearMembers[yearEnd[y]++] = i;
+			}
+
+		// the neighbours of each module: the rest of its subject year, and
+		// the modules sharing its students, counting an unscheduled module
+		// which is both only once
+		degree = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			int y = table.getSubjectYearId(i);
+			degree[i] = yearStart[y + 1] - yearStart[y] - 1;
+			if (conflicts != null)
+				for (int k = 0; k < conflicts.getDegree(i); k++)
+				{
+					int other = conflicts.getNeighbour(i, k);
+					if (scheduled[other] || table.getSubjectYearId(other) != y)
+						degree[i]++;
+				}
+		}
+
+		// put the unscheduled modules in the heap
+		heap = new int[yearMembers.length];
+		heapPosition = new int[n];
+		Arrays.fill(heapPosition, NONE);
+		heapSize = 0;
+		for (int i = 0; i < n; i++)
+			if (!scheduled[i])
+			{
+				heap[heapSize] = i;
+				heapPosition[i] = heapSize++;
+			}
+		for (int k = heapSize / 2 - 1; k >= 0; k--)
+			siftDown(k);
+
+		// rule out the times of the modules already scheduled
+		for (int i = 0; i < n; i++)
+		{
+			Slot s = scheduled[i] ? model.slotForModule(modules[i]) : null;
+			if (s != null)
+				ruleOut(i, s.getRow());
+		}
+
+		// place the most saturated module, until all are placed or given up on
+		while (heapSize > 0)
+		{
+			int m = pop();
+			int y = table.getSubjectYearId(m);
+			// take it out of its subject year's unplaced modules
+			int last = yearMembers[--yearEnd[y]];
+			yearMembers[yearPosition[m]] = last;
+			yearPosition[last] = yearPosition[m];
+
+			int p = choosePlace(m);
+			if (p == NONE)
+			{
+				unplaced.add(modules[m]);
+				continue;
+			}
+			// give it the last free room of the class at the time
+			int t = p / classes;
+			place[m] = t * cols + freeColumns[columnStart[p] + --free[p]];
+			ruleOut(m, t);
+		}
+	}
+
+	/**
+	 * Find the place for a module: the earliest time which is not ruled out
+	 * and has a free room of the smallest class big enough for it.
+	 * @param m the module id.
+	 * @return the place, as time * classes + class, or NONE if there is none.
+	 */
+	private int choosePlace(int m)
+	{
+		int classes = capacities.length;
+		int size = table.getSize(m);
+		int smallest = 0;
+		while (smallest < classes && capacities[smallest] < size)
+			smallest++;
+		for (int c = smallest; c < classes; c++)
+			for (int t = 0; t < times; t++)
+				if (free[t * classes + c] > 0
+						&& (ruledOut[m * words + (t >>> 6)] & (1L << t)) == 0)
+					return t * classes + c;
+		return NONE;
+	}
+
+	/**
+	 * Rule out a time for the unplaced neighbours of a module placed there.
+	 * @param m the module id.
+	 * @param t the time.
+	 */
+	private void ruleOut(int m, int t)
+	{
+		int y = table.getSubjectYearId(m);
+		for (int k = yearStart[y]; k < yearEnd[y]; k++)
+			saturate(yearMembers[k], t);
+		if (conflicts != null)
+			for (int k = 0; k < conflicts.getDegree(m); k++)
+			{
+				int other = conflicts.getNeighbour(m, k);
+				if (heapPosition[other] != NONE)
+					saturate(other, t);
+			}
+	}
+
+	/**
+	 * Rule out a time for an unplaced module, raising its saturation if the
+	 * time was not already ruled out.
+	 * @param m the module id.
+	 * @param t the time.
+	 */
+	private void saturate(int m, int t)
+	{
+		int w = m * words + (t >>> 6);
+		if ((ruledOut[w] & (1L << t)) != 0)
+			return;
+		ruledOut[w] |= 1L << t;
+		saturation[m]++;
+		// keys only ever rise, so the module can only move up
+		siftUp(heapPosition[m]);
+	}
+
+	/**
+	 * Put the modules into the slots chosen for them, as one batch of changes.
+	 * Each placement is checked and made atomically by the model, as another
+	 * thread may have changed it since it was read; a module whose slot is no
+	 * longer free or valid is added to the unplaced modules.
+	 */
+	private void apply()
+	{
+		Module[] modules = model.getModules();
+		model.beginBatch();
+		try {
+			for (int i = 0; i < place.length; i++)
+				if (place[i] != NONE
+						&& !model.tryMove(modules[i], null, slots[place[i] / cols][place[i] % cols]))
+					unplaced.add(modules[i]);
+		} finally {
+			model.endBatch();
+		}
+	}
+
+	/**
+	 * Compare two modules by the order in which they should be placed.
+	 * @param a one module id.
+	 * @param b the other module id.
+	 * @return true if a should be placed before b.
+	 */
+	private boolean before(int a, int b)
+	{
+		if (saturation[a] != saturation[b])
+			return saturation[a] > saturation[b];
+		int sizeA = table.getSize(a);
+		int sizeB = table.getSize(b);
+		if (sizeA != sizeB)
+			return sizeA > sizeB;
+		if (degree[a] != degree[b])
+			return degree[a] > degree[b];
+		return a < b;
+	}
+
+	/**
+	 * Take the first module off the heap.
+	 * @return the module id.
+	 */
+	private int pop()
+	{
+		int top = heap[0];
+		heapPosition[top] = NONE;
+		if (--heapSize > 0)
+		{
+			heap[0] = heap[heapSize];
+			heapPosition[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	/**
+	 * Move the module at a position of the heap up until its parent comes
+	 * before it.
+	 * @param k the position.
+	 */
+	private void siftUp(int k)
+	{
+		int m = heap[k];
+		while (k > 0)
+		{
+			int parent = (k - 1) / 2;
+			if (!before(m, heap[parent]))
+				break;
+			heap[k] = heap[parent];
+			heapPosition[heap[k]] = k;
+			k = parent;
+		}
+		heap[k] = m;
+		heapPosition[m] = k;
+	}
+
+	/**
+	 * Move the module at a position of the heap down until it comes before
+	 * both its children.
+	 * @param k the position.
+	 */
+	private void siftDown(int k)
+	{
+		int m = heap[k];
+		while (2 * k + 1 < heapSize)
+		{
+			int child = 2 * k + 1;
+			if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+				child++;
+			if (!before(heap[child], m))
+				break;
+			heap[k] = heap[child];
+			heapPosition[heap[k]] = k;
+			k = child;
+		}
+		heap[k] = m;
+		heapPosition[m] = k;
+	}
+}
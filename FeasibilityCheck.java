@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cheap proof that the unscheduled modules of a model cannot all be placed,
+ * found by counting rather than searching. Each check compares what some
+ * group of modules needs with what the timetable has left:
+ * <ul>
+ * <li>the modules needing at least a given room size, against the free
+ * slots with rooms that big;</li>
+ * <li>the modules of one subject and year, against the times with no module
+ * of that subject and year;</li>
+ * <li>the modules of one subject and year needing at least a given room
+ * size, against those times which also have a free room that big.</li>
+ * </ul>
+ * Passing the checks does not mean a timetable exists, but failing one means
+ * it does not, so a search need not be started.
+ */
+public class FeasibilityCheck {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The model to check. */
+	private ProgramModel model;
+
+	/** The reasons the last check found the model infeasible. */
+	private ArrayList<String> reasons = new ArrayList<String>();
+
+	/** The most reasons recorded, so a hopeless file gives a readable answer. */
+	private final static int MAX_REASONS = 20;
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate a check for a given model.
+	 * @param model the model to check.
+	 */
+	public FeasibilityCheck(ProgramModel model)
+	{
+		this.model = model;
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Get the reasons the last check found the model infeasible.
+	 * @return the reasons, empty if none were found.
+	 */
+	public List<String> getReasons()
+	{
+		return reasons;
+	}
+
+	/**
+	 * Check whether the unscheduled modules could possibly all be placed,
+	 * given the modules already placed.
+	 * @return false if they certainly cannot, with the reasons recorded.
+	 */
+	public boolean check()
+	{
+		reasons.clear();
+		Slot[][] slots = model.getSlots();
+		int times = slots.length;
+		int cols = slots[0].length;
+
+		// the distinct room sizes, smallest first
+		int[] capacities = model.getCapacities();
+		int[] classOfColumn = model.getCapacityClasses();
+		int classes = capacities.length;
+
+		// free rooms of each class at each time, and the subject years placed
+		// at each time
+		Module[] modules = model.getModules();
+		int years = 0;
+		for (int i = 0; i < modules.length; i++)
+			years = Math.max(years, modules[i].getSubjectYearId() + 1);
+		int[][] free = new int[times][classes];
+		boolean[][] yearAt = new boolean[years][times];
+		for (int t = 0; t < times; t++)
+			for (int j = 0; j < cols; j++)
+			{
+				Module m = model.moduleInSlot(slots[t][j]);
+				if (m == null)
+					free[t][classOfColumn[j]]++;
+				else
+					yearAt[m.getSubjectYearId()][t] = true;
+			}
+
+		// count the unscheduled modules by the smallest class they fit, in
+		// total and for each subject year; classes == fits no room
+		int[] demand = new int[classes + 1];
+		int[][] yearDemand = new int[years][];
+		String[] yearNames = new String[years];
+		for (int i = 0; i < modules.length; i++)
+		{
+			Module m = modules[i];
+			if (model.slotForModule(m) != null)
+				continue;
+			int c = smallestClass(capacities, m.getSize());
+			if (c == classes)
+				fail(m.getCode() + " has " + m.getSize() + " students, but the biggest room has "
+						+ capacities[classes - 1] + " seats");
+			demand[c]++;
+			int y = m.getSubjectYearId();
+			if (yearDemand[y] == null)
+				yearDemand[y] = new int[classes + 1];
+			yearDemand[y][c]++;
+			yearNames[y] = m.getSubjectYear();
+		}
+
+		// modules needing class c or bigger, against free rooms of class c
+		// or bigger, from the biggest class down; modules fitting no room
+		// have been reported already
+		int needed = 0;
+		int supply = 0;
+		for (int c = classes - 1; c >= 0; c--)
+		{
+			needed += demand[c];
+			for (int t = 0; t < times; t++)
+				supply += free[t][c];
+			if (needed > supply)
+				fail(needed + " modules need rooms of " + capacities[c] + " seats or more, but only "
+						+ supply + " such slots are free");
+		}
+
+		// for each subject year, its modules needing class c or bigger, against
+		// the times without that subject year that have such a room free
+		int[] timesWithRoom = new int[classes];
+		for (int y = 0; y < years; y++)
+		{
+			if (yearDemand[y] == null)
+				continue;
+			Arrays.fill(timesWithRoom, 0);
+			for (int t = 0; t < times; t++)
+			{
+				if (yearAt[y][t])
+					continue;
+				// the biggest class with a free room at this time
+				int biggest = classes - 1;
+				while (biggest >= 0 && free[t][biggest] == 0)
+					biggest--;
+				for (int c = 0; c <= biggest; c++)
+					timesWithRoom[c]++;
+			}
+			needed = 0;
+			for (int c = classes - 1; c >= 0; c--)
+			{
+				needed += yearDemand[y][c];
+				if (needed > timesWithRoom[c])
+				{
+					fail(yearNames[y] + " has " + needed + " modules to place"
+							+ (c > 0 ? " needing " + capacities[c] + " seats or more" : "")
+							+ ", but only " + timesWithRoom[c] + " times are free for it");
+					break;
+				}
+			}
+		}
+		return reasons.isEmpty();
+	}
+
+	/**
+	 * Find the smallest capacity class a module fits in.
+	 * @param capacities the capacities of the classes, smallest first.
+	 * @param size the number of students.
+	 * @return the class, or the number of classes if no room is big enough.
+	 */
+	private static int smallestClass(int[] capacities, int size)
+	{
+		int c = Arrays.binarySearch(capacities, size);
+		return c >= 0 ? c : -c - 1;
+	}
+
+	/**
+	 * Record a reason the model is infeasible, up to the limit.
+	 * @param reason the reason.
+	 */
+	private void fail(String reason)
+	{
+		if (reasons.size() < MAX_REASONS)
+			reasons.add(reason);
+	}
+}
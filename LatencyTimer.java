@@ -0,0 +1,161 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram for one operation. Each run's time is counted in a
+ * bucket by its power of two of nanoseconds, so recording is a few atomic
+ * additions and percentiles are accurate to within a factor of two. Timers
+ * are made through {@link Metrics}, and record nothing unless metrics are
+ * enabled.
+ */
+public class LatencyTimer implements LatencyTimerMBean {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The name of the operation. */
+	private String name;
+
+	/** Number of runs in each bucket, where bucket b holds times below 2^b ns. */
+	private AtomicLongArray buckets = new AtomicLongArray(64);
+
+	/** The number of runs. */
+	private LongAdder count = new LongAdder();
+
+	/** The total time of all runs, in nanoseconds. */
+	private LongAdder total = new LongAdder();
+
+	/** The longest run, in nanoseconds. */
+	private AtomicLong max = new AtomicLong();
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate a timer for an operation.
+	 * @param name the name of the operation.
+	 */
+	LatencyTimer(String name)
+	{
+		this.name = name;
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Record a run of the operation which started at a given time, if
+	 * metrics are enabled.
+	 * @param start the start time from {@link Metrics#start}.
+	 */
+	public void stop(long start)
+	{
+		if (Metrics.ENABLED)
+			record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Record a run of the operation.
+	 * @param nanos how long it took, in nanoseconds.
+	 */
+	public void record(long nanos)
+	{
+		nanos = Math.max(nanos, 0);
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+		count.increment();
+		total.add(nanos);
+		// raise the maximum, unless another thread raises it further first
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+
+	/**
+	 * Get the name of the operation.
+	 * @return the name.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public double getTotalMillis()
+	{
+		return total.sum() / 1e6;
+	}
+
+	public double getMeanMicros()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : total.sum() / 1e3 / n;
+	}
+
+	public double getMaxMicros()
+	{
+		return max.get() / 1e3;
+	}
+
+	public double getMedianMicros()
+	{
+		return percentile(0.5);
+	}
+
+	public double getPercentile99Micros()
+	{
+		return percentile(0.99);
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < buckets.length(); i++)
+			buckets.set(i, 0);
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Estimate a percentile of the run times, as the upper bound of the
+	 * bucket it falls in.
+	 * @param fraction the fraction of runs, between 0 and 1.
+	 * @return the time, in microseconds.
+	 */
+	private double percentile(double fraction)
+	{
+		long n = 0;
+		for (int i = 0; i < buckets.length(); i++)
+			n += buckets.get(i);
+		if (n == 0)
+			return 0;
+		long target = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int b = 0; b < buckets.length(); b++)
+		{
+			seen += buckets.get(b);
+			if (seen >= target)
+				return Math.min(Math.scalb(1.0, b), max.get()) / 1e3;
+		}
+		return max.get() / 1e3;
+	}
+
+	/**
+	 * Describe the timer in one line, for the log.
+	 * @return the description.
+	 */
+	public String toString()
+	{
+		return String.format("%-32s count %10d  total %10.1f ms  mean %10.1f us  "
+				+ "median %10.1f us  p99 %10.1f us  max %10.1f us",
+				name, getCount(), getTotalMillis(), getMeanMicros(),
+				getMedianMicros(), getPercentile99Micros(), getMaxMicros());
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * Management interface of a {@link LatencyTimer}, through which JMX clients read
+ * the latency of an operation.
+ */
+public interface LatencyTimerMBean {
+
+	/**
+	 * Get the number of times the operation has run.
+	 * @return the count.
+	 */
+	long getCount();
+
+	/**
+	 * Get the total time spent in the operation.
+	 * @return the total time, in milliseconds.
+	 */
+	double getTotalMillis();
+
+	/**
+	 * Get the mean time the operation took.
+	 * @return the mean time, in microseconds.
+	 */
+	double getMeanMicros();
+
+	/**
+	 * Get the longest time the operation took.
+	 * @return the longest time, in microseconds.
+	 */
+	double getMaxMicros();
+
+	/**
+	 * Get the median time the operation took, to within a factor of two.
+	 * @return the median time, in microseconds.
+	 */
+	double getMedianMicros();
+
+	/**
+	 * Get the time within which 99% of runs of the operation finished, to
+	 * within a factor of two.
+	 * @return the 99th percentile time, in microseconds.
+	 */
+	double getPercentile99Micros();
+
+	/**
+	 * Forget all runs recorded so far.
+	 */
+	void reset();
+}
@@ -0,0 +1,112 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the program's timers and counters. Metrics are only collected
+ * when the program is started with -Dtimetable.metrics=true, in which case
+ * each is registered as an MBean under the domain "Timetable", so it can be
+ * watched with jconsole or any other JMX client. With
+ * -Dtimetable.metrics.dump=true as well, every metric is written to standard
+ * error as the program exits.
+ * <p>
+ * When metrics are disabled, {@link #ENABLED} is a constant false, so the
+ * JIT removes the timing code around each instrumented operation.
+ */
+public class Metrics {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** Whether metrics are collected. */
+	public final static boolean ENABLED = Boolean.getBoolean("timetable.metrics");
+
+	/** Every timer and counter made, in the order they were made. */
+	private static ArrayList<Object> all = new ArrayList<Object>();
+
+	static {
+		// write the metrics to the log at exit, if asked
+		if (ENABLED && Boolean.getBoolean("timetable.metrics.dump"))
+			Runtime.getRuntime().addShutdownHook(new Thread("metrics-dump") {
+				public void run() {
+					dump();
+				}
+			});
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Get the time to pass to {@link LatencyTimer#stop} at the end of an
+	 * operation.
+	 * @return the current time in nanoseconds, or 0 if metrics are disabled.
+	 */
+	public static long start()
+	{
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Make a timer for an operation, registering it as an MBean if metrics
+	 * are enabled.
+	 * @param name the name of the operation.
+	 * @return the timer.
+	 */
+	public static LatencyTimer timer(String name)
+	{
+		LatencyTimer timer = new LatencyTimer(name);
+		register(timer, "Timer", name);
+		return timer;
+	}
+
+	/**
+	 * Make a counter, registering it as an MBean if metrics are enabled.
+	 * @param name the name of the total.
+	 * @return the counter.
+	 */
+	public static Counter counter(String name)
+	{
+		Counter counter = new Counter(name);
+		register(counter, "Counter", name);
+		return counter;
+	}
+
+	/**
+	 * Write every metric to standard error, one per line.
+	 */
+	public static synchronized void dump()
+	{
+		System.err.println("Metrics:");
+		for (int i = 0; i < all.size(); i++)
+			System.err.println("  " + all.get(i));
+	}
+
+	/**
+	 * Remember a metric, and register it with the platform MBean server if
+	 * metrics are enabled.
+	 * @param metric the metric.
+	 * @param type the type of metric.
+	 * @param name the name of the metric.
+	 */
+	private static synchronized void register(Object metric, String type, String name)
+	{
+		if (!ENABLED)
+			return;
+		all.add(metric);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("Timetable:type=" + type
+					+ ",name=" + ObjectName.quote(name));
+			if (!server.isRegistered(objectName))
+				server.registerMBean(metric, objectName);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,376 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Benchmark harness for the hot paths of the {@link ProgramModel}. Each
+ * benchmark is run against synthetic grids and module files of several
+ * sizes, made by {@link #writeGrid} and {@link #writeModules}, with warmup
+ * iterations followed by measured ones, and reports the mean time per
+ * operation. Results can be saved to a file
+ * and compared against a saved baseline.
+ *
+ * Usage: java ModelBenchmark [-grid TxR,TxR,...] [-modules n,n,...] [-save file] [-baseline file]
+ *
+ * where each grid is given as its number of times by its number of rooms.
+ */
+public class ModelBenchmark {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** Number of warmup iterations for each benchmark. */
+	private static final int WARMUP = 5;
+
+	/** Number of measured iterations for each benchmark. */
+	private static final int ITERATIONS = 10;
+
+	/** Target length of each iteration, in nanoseconds. */
+	private static final long ITERATION_NANOS = 100000000L;
+
+	/** The capacities of rooms in generated grids, repeated as needed. */
+	private static final int[] CAPACITIES = new int[] {100,100,60,60,60,30,30,30};
+
+	/** The sizes of modules in generated files. */
+	private static final int[] SIZES = new int[] {100, 60, 50, 30, 25};
+
+	/** Results of each benchmark, in nanoseconds per operation, by name. */
+	private LinkedHashMap<String, Double> results = new LinkedHashMap<String, Double>();
+
+	/** Sink for values computed by benchmarks, so they cannot be optimised away. */
+	private long sink;
+
+	//================================================================================
+    // Benchmark definition
+    //================================================================================
+
+	/**
+	 * A single benchmark, which performs a number of operations.
+	 */
+	private interface Benchmark
+	{
+		/**
+		 * Perform the operation a given number of times.
+		 * @param ops the number of operations.
+		 * @return a value depending on the results, to be consumed.
+		 */
+		long run(int ops);
+	}
+
+	//================================================================================
+    // Main method
+    //================================================================================
+
+	/**
+	 * Run the benchmarks.
+	 * @param args the command line arguments.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int[][] grids = new int[][] {{10, 8}, {50, 300}};
+		int[] counts = new int[] {100, 1000, 10000};
+		String save = null;
+		String baseline = null;
+
+		// read the options
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equals("-grid"))
+			{
+				String[] s = args[i + 1].split(",");
+				grids = new int[s.length][];
+				for (int j = 0; j < s.length; j++)
+				{
+					String[] g = s[j].split("x");
+					grids[j] = new int[] {Integer.parseInt(g[0]), Integer.parseInt(g[1])};
+				}
+			}
+			else if (args[i].equals("-modules"))
+			{
+				String[] s = args[i + 1].split(",");
+				counts = new int[s.length];
+				for (int j = 0; j < s.length; j++)
+					counts[j] = Integer.parseInt(s[j]);
+			}
+			else if (args[i].equals("-save"))
+				save = args[i + 1];
+			else if (args[i].equals("-baseline"))
+				baseline = args[i + 1];
+		}
+
+		ModelBenchmark bench = new ModelBenchmark();
+		for (int g = 0; g < grids.length; g++)
+			for (int i = 0; i < counts.length; i++)
+				bench.runAll(grids[g][0], grids[g][1], counts[i]);
+		if (baseline != null)
+			bench.compare(baseline);
+		if (save != null)
+			bench.save(save);
+	}
+
+	/**
+	 * Run every benchmark for a given grid and number of modules.
+	 * @param times the number of times in the grid.
+	 * @param rooms the number of rooms in the grid.
+	 * @param count the number of modules in the input file.
+	 * @throws IOException if the synthetic input cannot be written.
+	 */
+	private void runAll(int times, int rooms, int count) throws IOException
+	{
+		// write the synthetic grid and input, and load them into a model
+		File grid = File.createTempFile("Grid", ".txt");
+		File in = File.createTempFile("ModulesIn", ".txt");
+		File out = File.createTempFile("ModulesOut", ".txt");
+		grid.deleteOnExit();
+		in.deleteOnExit();
+		out.deleteOnExit();
+		writeGrid(grid, times, rooms);
+		writeModules(in, count, 42, times, rooms);
+		final String gridName = grid.getPath();
+		final String inName = in.getPath();
+		final String outName = out.getPath();
+		final ProgramModel model = new ProgramModel(gridName, inName, null);
+		final Module[] modules = model.getModules();
+		final Slot[] slots = flatten(model.getSlots());
+		String params = "modules=" + count + ",grid=" + times + "x" + rooms;
+
+		measure("moduleFitsInSlot", params, new Benchmark() {
+			public long run(int ops) {
+				long n = 0;
+				for (int i = 0; i < ops; i++)
+					if (model.moduleFitsInSlot(modules[i % modules.length], slots[i % slots.length]))
+						n++;
+				return n;
+			}
+		});
+		measure("validSlotsForModule", params, new Benchmark() {
+			public long run(int ops) {
+				long n = 0;
+				for (int i = 0; i < ops; i++)
+					n += model.validSlotsForModule(modules[i % modules.length]).length;
+				return n;
+			}
+		});
+		measure("slotForModule", params, new Benchmark() {
+			public long run(int ops) {
+				long n = 0;
+				for (int i = 0; i < ops; i++)
+					if (model.slotForModule(modules[i % modules.length]) != null)
+						n++;
+				return n;
+			}
+		});
+		measure("lineForModule", params, new Benchmark() {
+			public long run(int ops) {
+				long n = 0;
+				for (int i = 0; i < ops; i++)
+					n += model.lineForModule(modules[i % modules.length]).length();
+				return n;
+			}
+		});
+		measure("createModules", params, new Benchmark() {
+			public long run(int ops) {
+				long n = 0;
+				for (int i = 0; i < ops; i++)
+					n += new ProgramModel(gridName, inName, null).getModules().length;
+				return n;
+			}
+		});
+		measure("saveToFile", params, new Benchmark() {
+			public long run(int ops) {
+				long n = 0;
+				for (int i = 0; i < ops; i++)
+					if (model.saveToFile(outName))
+						n++;
+				return n;
+			}
+		});
+	}
+
+	//================================================================================
+    // Measurement and reporting
+    //================================================================================
+
+	/**
+	 * Measure a benchmark, and record and print its mean time per operation.
+	 * @param name the name of the benchmark.
+	 * @param params description of the parameters.
+	 * @param b the benchmark.
+	 */
+	private void measure(String name, String params, Benchmark b)
+	{
+		// find a number of operations which takes roughly one iteration
+		int ops = 1;
+		long t;
+		while (true)
+		{
+			t = System.nanoTime();
+			sink += b.run(ops);
+			t = System.nanoTime() - t;
+			if (t > ITERATION_NANOS / 10 || ops > Integer.MAX_VALUE / 2)
+				break;
+			ops *= 2;
+		}
+		ops = (int) Math.max(1, Math.min(Integer.MAX_VALUE, ops * (ITERATION_NANOS / (double) t)));
+
+		// warm up, then measure
+		for (int i = 0; i < WARMUP; i++)
+			sink += b.run(ops);
+		double[] samples = new double[ITERATIONS];
+		double mean = 0;
+		for (int i = 0; i < ITERATIONS; i++)
+		{
+			t = System.nanoTime();
+			sink += b.run(ops);
+			samples[i] = (System.nanoTime() - t) / (double) ops;
+			mean += samples[i] / ITERATIONS;
+		}
+		double variance = 0;
+		for (int i = 0; i < ITERATIONS; i++)
+			variance += (samples[i] - mean) * (samples[i] - mean) / ITERATIONS;
+
+		String key = name + "[" + params + "]";
+		results.put(key, mean);
+		System.out.printf("%-60s %14.1f ns/op  +- %.1f%n", key, mean, Math.sqrt(variance));
+	}
+
+	/**
+	 * Compare the results against a saved baseline, printing the change in
+	 * each benchmark present in both.
+	 * @param fileName the name of the baseline file.
+	 * @throws IOException if the file cannot be read.
+	 */
+	private void compare(String fileName) throws IOException
+	{
+		System.out.println();
+		System.out.println("Change against " + fileName + " (negative is faster):");
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				int tab = line.lastIndexOf('\t');
+				if (tab < 0)
+					continue;
+				String key = line.substring(0, tab);
+				Double now = results.get(key);
+				if (now == null)
+					continue;
+				double before = Double.parseDouble(line.substring(tab + 1));
+				System.out.printf("%-60s %+8.1f%%%n", key, 100 * (now - before) / before);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save the results as tab separated lines of name and ns/op.
+	 * @param fileName the name of the file.
+	 * @throws IOException if the file cannot be written.
+	 */
+	private void save(String fileName) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+		try {
+			for (String key : results.keySet())
+				out.println(key + "\t" + results.get(key));
+		} finally {
+			out.close();
+		}
+		// print the sink so the JIT cannot discard the benchmark work
+		System.out.println("Saved to " + fileName + " (" + sink + ")");
+	}
+
+	//================================================================================
+    // Synthetic input
+    //================================================================================
+
+	/**
+	 * Write a synthetic grid file. Times are named D0AM, D0PM, D1AM and so on,
+	 * and rooms R0, R1 and so on, with capacities repeating the standard rooms.
+	 * @param file the file to write.
+	 * @param times the number of times.
+	 * @param rooms the number of rooms.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void writeGrid(File file, int times, int rooms) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try {
+			for (int i = 0; i < times; i++)
+				out.println("TIME " + timeName(i));
+			for (int j = 0; j < rooms; j++)
+				out.println("ROOM R" + j + " " + CAPACITIES[j % CAPACITIES.length]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write a synthetic module file for a grid written by {@link #writeGrid}.
+	 * Codes are spread over many subjects and years, and about one in four
+	 * modules is given a time and room; these may break the rules, as
+	 * hand-written files can.
+	 * @param file the file to write.
+	 * @param count the number of modules.
+	 * @param seed the seed for the random generator.
+	 * @param times the number of times in the grid.
+	 * @param rooms the number of rooms in the grid.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void writeModules(File file, int count, long seed, int times, int rooms)
+			throws IOException
+	{
+		Random random = new Random(seed);
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try {
+			for (int i = 0; i < count; i++)
+			{
+				// subject from two letters, then a year digit and a number
+				String code = "" + (char) ('A' + i % 26) + (char) ('A' + (i / 26) % 26)
+						+ (1 + (i / 676) % 4) + String.format("%03d", i % 1000);
+				String slot = "????? ?";
+				if (random.nextInt(4) == 0)
+					slot = timeName(random.nextInt(times)) + " R" + random.nextInt(rooms);
+				out.println(code + " Module_" + i + " " + slot + " "
+						+ SIZES[random.nextInt(SIZES.length)]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Get the name of a time in a generated grid.
+	 * @param i the index of the time.
+	 * @return the name, such as D0AM.
+	 */
+	private static String timeName(int i)
+	{
+		return "D" + i / 2 + (i % 2 == 0 ? "AM" : "PM");
+	}
+
+	/**
+	 * Flatten a 2D array of slots into a single array.
+	 * @param slots the slots.
+	 * @return array of all slots, row by row.
+	 */
+	private static Slot[] flatten(Slot[][] slots)
+	{
+		ArrayList<Slot> list = new ArrayList<Slot>();
+		for (int i = 0; i < slots.length; i++)
+			for (int j = 0; j < slots[i].length; j++)
+				list.add(slots[i][j]);
+		return list.toArray(new Slot[0]);
+	}
+}
@@ -0,0 +1,52 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingWorker;
+
+/**
+ * Execution layer which runs work on the model (queries, saves and
+ * auto-scheduling) on a background thread, so that the Swing event thread
+ * never waits for it. Tasks are {@link SwingWorker}s, so they can be
+ * cancelled, report progress, and hand results back to the event thread in
+ * batches through publish and process. There is a single worker thread, so
+ * tasks never run on the model at the same time as each other.
+ */
+public class ModelExecutor {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The executor running the tasks. */
+	private ExecutorService executor = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					// a daemon thread, so a running task never stops the program exiting
+					Thread t = new Thread(r, "model-worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Queue a task to run on the worker thread.
+	 * @param task the task.
+	 */
+	public void execute(SwingWorker<?, ?> task)
+	{
+		executor.execute(task);
+	}
+
+	/**
+	 * Stop accepting tasks, letting any queued tasks finish.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,362 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Headless server mode, which serves a single {@link ProgramModel} over HTTP
+ * on the local machine, so other tools can query and update the timetable
+ * without the GUI. Each request is handled on its own virtual thread where
+ * the JVM has them, or on a pooled thread otherwise; the model's atomic
+ * operations keep concurrent requests from breaking the rules.
+ *
+ * Usage: java ModelServer [-grid file] [-enrolments file] [-port n] [-o output] [input]
+ *
+ * Responses are plain text. Modules are described by lines in the format of
+ * the output file, and slots by lines of the form "time room size".
+ * <pre>
+ * GET  /modules                            every module
+ * GET  /modules/CODE                       a single module
+ * GET  /modules/CODE/slots                 the slots the module may be placed in
+ * POST /modules/CODE/place?time=T&amp;room=R   place or move the module
+ * POST /modules/CODE/unplace               unschedule the module
+ * POST /save                               save to the output file
+ * </pre>
+ * An unknown module or slot gets 404, and a placement which breaks the rules
+ * gets 409.
+ */
+public class ModelServer {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The port listened on when none is given. */
+	public final static int DEFAULT_PORT = 8765;
+
+	/** The model served. */
+	private ProgramModel model;
+
+	/** The name of the file saved to. */
+	private String output;
+
+	//================================================================================
+    // Constructor and helper methods
+    //================================================================================
+
+	/**
+	 * Instantiate a server for a given model.
+	 * @param model the model to serve.
+	 * @param output the name of the file to save to.
+	 */
+	public ModelServer(ProgramModel model, String output)
+	{
+		this.model = model;
+		this.output = output;
+	}
+
+	/**
+	 * Load the model and serve it until the program is stopped.
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args)
+	{
+		System.setProperty("java.awt.headless", "true");
+		String grid = ProgramModel.GRID_FILE;
+		String enrolments = ProgramModel.ENROLMENT_FILE;
+		String input = "ModulesIn.txt";
+		String output = null;
+		int port = DEFAULT_PORT;
+
+		// read the options and input file name; a bad port is a usage error
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-grid") && i + 1 < args.length)
+				grid = args[++i];
+			else if (args[i].equals("-enrolments") && i + 1 < args.length)
+				enrolments = args[++i];
+			else if (args[i].equals("-port") && i + 1 < args.length)
+			{
+				try {
+					port = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				if (port < 0 || port > 65535)
+					usage();
+			}
+			else if (args[i].equals("-o") && i + 1 < args.length)
+				output = args[++i];
+			else if (args[i].startsWith("-"))
+				usage();
+			else
+				input = args[i];
+		}
+		if (output == null)
+			output = BatchMain.outputName(input);
+
+		ProgramModel model = new ProgramModel(grid, input, enrolments);
+		if (model.getLoadError() != null)
+		{
+			System.err.println(input + ": " + model.getLoadError().getMessage());
+			System.exit(2);
+		}
+		System.err.print(model.getValidationReport().summary(Integer.MAX_VALUE));
+		if (model.getConflictGraph() != null)
+			System.err.print(model.getConflictGraph().getReport().summary(Integer.MAX_VALUE));
+		try {
+			HttpServer server = new ModelServer(model, output).start(port);
+			System.out.println("Serving " + input + " on http://localhost:"
+					+ server.getAddress().getPort() + "/");
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Print how to run the server, and exit with status 2.
+	 */
+	private static void usage()
+	{
+		System.err.println("Usage: java ModelServer [-grid file] [-enrolments file] [-port n] [-o output] [input]");
+		System.exit(2);
+	}
+
+	/**
+	 * Start serving the model on the loopback address.
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @return the running server, which can be stopped with stop.
+	 * @throws IOException if the port cannot be listened on.
+	 */
+	public HttpServer start(int port) throws IOException
+	{
+		// send small responses at once rather than waiting to fill a packet,
+		// which otherwise limits a keep-alive connection to a few dozen 
+		// requests a second; this must be set before the first server starts
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+		server.createContext("/modules", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleModules(exchange);
+			}
+		});
+		server.createContext("/save", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleSave(exchange);
+			}
+		});
+		server.setExecutor(newExecutor());
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Create the executor requests are handled on: one virtual thread per
+	 * request if the JVM supports them, otherwise a pool of ordinary threads.
+	 * The virtual thread executor is looked up reflectively so the program
+	 * still compiles and runs on JVMs from before Java 21.
+	 * @return the executor.
+	 */
+	static ExecutorService newExecutor()
+	{
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	//================================================================================
+    // Request handling methods
+    //================================================================================
+
+	/**
+	 * Handle a request under /modules.
+	 * @param exchange the request and its response.
+	 * @throws IOException if the response cannot be sent.
+	 */
+	private void handleModules(HttpExchange exchange) throws IOException
+	{
+		String method = exchange.getRequestMethod();
+		// split /modules/CODE/action into its parts
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		if (path.length < 2 || !path[1].equals("modules"))
+		{
+			send(exchange, 404, "Not found");
+			return;
+		}
+		if (path.length == 2)
+		{
+			if (!method.equals("GET"))
+			{
+				send(exchange, 405, "Use GET");
+				return;
+			}
+			Module[] modules = model.getModules();
+			StringBuilder s = new StringBuilder(modules.length * 32);
+			for (int i = 0; i < modules.length; i++)
+				describe(s, modules[i]);
+			send(exchange, 200, s.toString());
+			return;
+		}
+
+		Module module = model.getModule(path[2]);
+		if (module == null)
+		{
+			send(exchange, 404, "No module " + path[2]);
+			return;
+		}
+		// queries are GETs, and changes are POSTs
+		String action = path.length > 3 ? path[3] : "";
+		String expected = action.isEmpty() || action.equals("slots") ? "GET" : "POST";
+		if (path.length > 4)
+		{
+			send(exchange, 404, "Not found");
+			return;
+		}
+		if (!method.equals(expected))
+		{
+			send(exchange, 405, "Use " + expected);
+			return;
+		}
+
+		if (action.isEmpty())
+			send(exchange, 200, describe(new StringBuilder(), module).toString());
+		else if (action.equals("slots"))
+		{
+			Slot[] valid = model.validSlotsForModule(module);
+			StringBuilder s = new StringBuilder(valid.length * 16);
+			for (int i = 0; i < valid.length; i++)
+				s.append(valid[i].getTime()).append(' ').append(valid[i].getName())
+						.append(' ').append(valid[i].getSize()).append('\n');
+			send(exchange, 200, s.toString());
+		}
+		else if (action.equals("place"))
+		{
+			HashMap<String, String> query;
+			try {
+				query = query(exchange);
+			} catch (IllegalArgumentException e) {
+				// a malformed percent-escape
+				send(exchange, 400, "Bad query");
+				return;
+			}
+			// a missing time or room is a bad request, an unknown one is not found
+			String time = query.get("time");
+			String room = query.get("room");
+			if (time == null || room == null)
+			{
+				send(exchange, 400, "Bad query");
+				return;
+			}
+			Slot slot = model.getSlot(time, room);
+			if (slot == null)
+				send(exchange, 404, "No slot " + time + " " + room);
+			else if (model.tryPlace(module, slot))
+				send(exchange, 200, describe(new StringBuilder(), module).toString());
+			else
+				send(exchange, 409, module.getCode() + " cannot be placed in "
+						+ slot.getTime() + " " + slot.getName());
+		}
+		else if (action.equals("unplace"))
+		{
+			model.removeModule(module);
+			send(exchange, 200, describe(new StringBuilder(), module).toString());
+		}
+		else
+			send(exchange, 404, "Not found");
+	}
+
+	/**
+	 * Handle a request to save the model.
+	 * @param exchange the request and its response.
+	 * @throws IOException if the response cannot be sent.
+	 */
+	private void handleSave(HttpExchange exchange) throws IOException
+	{
+		if (!exchange.getRequestMethod().equals("POST"))
+			send(exchange, 405, "Use POST");
+		else if (model.saveToFile(output))
+			send(exchange, 200, "Saved to " + output + "\n");
+		else
+			send(exchange, 500, "Could not save to " + output + "\n");
+	}
+
+	/**
+	 * Append the line describing a module, in the format of the output file.
+	 * @param s the builder to append to.
+	 * @param module the module.
+	 * @return the builder.
+	 */
+	private StringBuilder describe(StringBuilder s, Module module)
+	{
+		Slot slot = model.slotForModule(module);
+		s.append(module.getCode()).append(' ').append(module.getName()).append(' ');
+		if (slot == null)
+			s.append("????? ?");
+		else
+			s.append(slot.getTime()).append(' ').append(slot.getName());
+		return s.append(' ').append(module.getSize()).append('\n');
+	}
+
+	/**
+	 * Read the parameters from the query string of a request.
+	 * @param exchange the request.
+	 * @return map from parameter name to value.
+	 * @throws UnsupportedEncodingException never, as UTF-8 is always supported.
+	 * @throws IllegalArgumentException if a parameter is badly escaped.
+	 */
+	private HashMap<String, String> query(HttpExchange exchange)
+			throws UnsupportedEncodingException
+	{
+		HashMap<String, String> params = new HashMap<String, String>();
+		String q = exchange.getRequestURI().getRawQuery();
+		if (q == null)
+			return params;
+		String[] pairs = q.split("&");
+		for (int i = 0; i < pairs.length; i++)
+		{
+			int eq = pairs[i].indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(pairs[i].substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pairs[i].substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	/**
+	 * Send a plain text response and end the exchange.
+	 * @param exchange the request and its response.
+	 * @param status the HTTP status code.
+	 * @param body the text of the response.
+	 * @throws IOException if the response cannot be sent.
+	 */
+	private void send(HttpExchange exchange, int status, String body) throws IOException
+	{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		// a length of -1 means there is no body
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
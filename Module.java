@@ -1,5 +1,8 @@
 /**
- * Simple class to store details about a module.
+ * Simple class to store details about a module. The details are held in a
+ * {@link ModuleTable}, of which a module is a view of one row, so it costs
+ * little more than its id; the code and name are decoded by the table
+ * once, the first time they are asked for.
  */
 public class Module {
 	
@@ -7,40 +10,99 @@ public class Module {
     // Properties
     //================================================================================
 	
-	/** The unique identifying code for the module. */
-	private String code;
-
-	/** The name of the module. */
-	private String name;
-
-	/** The number of students taking the module. */
-	private int size;
+	/** The table holding the module's details. */
+	private final ModuleTable table;
+	
+	/** The row of the table holding the module's details. */
+	private final int id;
 
 	//================================================================================
     // Constructor
     //================================================================================
 	
 	/**
-	* Instantiate a module from a line of ModulesIn.txt.
+	* Instantiate a module from a line of ModulesIn.txt, in a table of its
+	* own which is freed with it. The table is never changed once the module
+	* is made, so it may be read from any thread. Such a module belongs to no
+	* model, and a model will not accept it.
+	* @param code the code, of at least 3 characters.
+	* @param size the number of students.
+	* @param name the name.
 	*/
 	public Module(String code, int size, String name)
 	{
-		this.code = code;
-		this.size = size;
-		this.name = name;
+		this.table = new ModuleTable(1);
+		this.id = table.add(this, code, size, name);
+		table.trim();
+	}
+
+	/**
+	* Instantiate a module from a line of ModulesIn.txt, adding it to the end
+	* of a table.
+	* @param table the table.
+	* @param code the code, of at least 3 characters.
+	* @param size the number of students.
+	* @param name the name.
+	*/
+	public Module(ModuleTable table, String code, int size, String name)
+	{
+		this.table = table;
+		this.id = table.add(this, code, size, name);
+	}
+
+	/**
+	* Instantiate the view of a row of a module table. Only the table should
+	* call this, once for each row.
+	* @param table the table.
+	* @param id the row.
+	*/
+	Module(ModuleTable table, int id)
+	{
+		this.table = table;
+		this.id = id;
 	}
 	
 	//================================================================================
     // Get methods
     //================================================================================
 	
+	/**
+	 * Get the id of the module, which is its row of its module table. For a
+	 * module of a model's table, it is also its index in the model's array
+	 * of modules.
+	 * @return the module id.
+	 */
+	public int getId()
+	{
+		return id;
+	}
+	
+	/**
+	 * Check whether the module is a row of a given table.
+	 * @param table the table.
+	 * @return true if the module's details are held in the table.
+	 */
+	boolean isIn(ModuleTable table)
+	{
+		return this.table == table;
+	}
+	
 	/**
 	 * Get the subject and year code for the module.
 	 * @return the 3 digit code.
 	 */
 	public String getSubjectYear()
 	{
-		return code.substring(0,3);
+		return table.getSubjectYear(id);
+	}
+	
+	/**
+	 * Get the integer id of the module's subject and year.
+	 * @return the subject year id.
+	 */
+	public int getSubjectYearId()
+	{
+		return table.getSubjectYearId(id);
 	}
 	
 	/**
@@ -49,7 +111,7 @@ public class Module {
 	 */
 	public String getCode()
 	{
-		return code;
+		return table.getCode(id);
 	}
 	
 	/**
@@ -58,7 +120,7 @@ public class Module {
 	 */
 	public int getSize()
 	{
-		return size;
+		return table.getSize(id);
 	}
 	
 	/**
@@ -67,6 +129,6 @@ public class Module {
 	 */
 	public String getName()
 	{
-		return name;
+		return table.getName(id);
 	}
 }
@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parser for module files in the format of ModulesIn.txt, where each line is
+ * "code name time room size". The file is memory mapped and its fields are
+ * read straight from the mapped bytes; times and rooms are resolved through
+ * hash tables of their names, and codes and names are copied straight into
+ * a {@link ModuleTable}, so the only object created per line is the
+ * module's view. Lines which cannot be read are recorded in a 
+ * {@link ValidationReport} and skipped.
+ */
+public class ModuleFileParser {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** Time or room index of a module whose time or room is given as question marks. */
+	public static final int UNSCHEDULED = -1;
+
+	/** Time or room index of a module whose time or room name is not recognised. */
+	public static final int UNKNOWN = -2;
+
+	/** The most bytes of the file mapped at once. */
+	private static final int WINDOW = 1 << 30;
+
+	/** Hash table of the time names. */
+	private NameTable times;
+
+	/** Hash table of the room names. */
+	private NameTable rooms;
+
+	/** The modules read from the file. */
+	private ModuleTable table = new ModuleTable(0);
+
+	/** The index of the time given for each module. */
+	private int[] timeIndices = new int[0];
+
+	/** The index of the room given for each module. */
+	private int[] roomIndices = new int[0];
+
+	/** The line number of each module. */
+	private int[] lines = new int[0];
+
+	/** The lines which could not be read. */
+	private ValidationReport report = new ValidationReport();
+
+	/** The number of modules read. */
+	private int count;
+
+	/** The number of bytes read. */
+	private long bytes;
+
+	/** The time taken by the last parse, in nanoseconds. */
+	private long nanos;
+
+	/** Start of each field of the line being parsed. */
+	private int[] fieldStarts = new int[5];
+
+	/** End of each field of the line being parsed. */
+	private int[] fieldEnds = new int[5];
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate a parser which resolves the given time and room names.
+	 * @param times the names of the times, in timetable order.
+	 * @param roomNames the names of the rooms, in timetable order.
+	 */
+	public ModuleFileParser(String[] times, String[] roomNames)
+	{
+		this.times = new NameTable(times);
+		this.rooms = new NameTable(roomNames);
+	}
+
+	//================================================================================
+    // Get methods
+    //================================================================================
+
+	/**
+	 * Get the modules read by the last parse.
+	 * @return array of modules, in file order.
+	 */
+	public Module[] getModules()
+	{
+		return table.getModules();
+	}
+
+	/**
+	 * Get the table of the modules read by the last parse, whose ids are
+	 * their positions in the file order.
+	 * @return the module table.
+	 */
+	public ModuleTable getTable()
+	{
+		return table;
+	}
+
+	/**
+	 * Get the time index given for each module, which is {@link #UNSCHEDULED}
+	 * for question marks and {@link #UNKNOWN} for an unrecognised name.
+	 * @return array of time indices, parallel to the modules.
+	 */
+	public int[] getTimeIndices()
+	{
+		return timeIndices;
+	}
+
+	/**
+	 * Get the room index given for each module, which is {@link #UNSCHEDULED}
+	 * for question marks and {@link #UNKNOWN} for an unrecognised name.
+	 * @return array of room indices, parallel to the modules.
+	 */
+	public int[] getRoomIndices()
+	{
+		return roomIndices;
+	}
+
+	/**
+	 * Get the line number of each module, counting from 1.
+	 * @return array of line numbers, parallel to the modules.
+	 */
+	public int[] getLines()
+	{
+		return lines;
+	}
+
+	/**
+	 * Get the report of the lines which could not be read.
+	 * @return the report.
+	 */
+	public ValidationReport getReport()
+	{
+		return report;
+	}
+
+	/**
+	 * Get the number of bytes read by the last parse.
+	 * @return the number of bytes.
+	 */
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Get a description of how quickly the last parse ran.
+	 * @return the parse throughput, in lines and megabytes per second.
+	 */
+	public String getThroughput()
+	{
+		double seconds = Math.max(nanos, 1) / 1e9;
+		return String.format("%d lines (%.1f MB) in %.1f ms: %.0f lines/s, %.1f MB/s",
+				count, bytes / 1e6, nanos / 1e6, count / seconds, bytes / 1e6 / seconds);
+	}
+
+	//================================================================================
+    // Parsing methods
+    //================================================================================
+
+	/**
+	 * Read all the modules from a file. Malformed lines are skipped, and 
+	 * recorded in the report.
+	 * @param fileName the name of the file.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public void parse(String fileName) throws IOException
+	{
+		long start = System.nanoTime();
+		count = 0;
+		report = new ValidationReport();
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			bytes = size;
+
+			// guess the number of modules from the size, assuming ~30 bytes a line
+			int capacity = (int) Math.min(Math.max(size / 30, 16), Integer.MAX_VALUE - 8);
+			table = new ModuleTable(capacity);
+			timeIndices = new int[capacity];
+			roomIndices = new int[capacity];
+			lines = new int[capacity];
+
+			// map the file a window at a time, each window starting on a new line
+			long position = 0;
+			int line = 1;
+			while (position < size)
+			{
+				long length = Math.min(size - position, WINDOW);
+				MappedByteBuffer buffer = channel.map(
+						FileChannel.MapMode.READ_ONLY, position, length);
+				boolean last = position + length == size;
+				int end = (int) length;
+
+				// parse each complete line in the window
+				int p = 0;
+				while (p < end)
+				{
+					int eol = p;
+					while (eol < end && buffer.get(eol) != '\n')
+						eol++;
+					// a line cut off by the window is read with the next window
+					if (eol == end && !last)
+						break;
+					try {
+						parseLine(buffer, p, eol, line);
+					} catch (IOException e) {
+						report.add(line, ValidationReport.Kind.MALFORMED, "cannot be read: " + e.getMessage());
+					}
+					line++;
+					p = eol + 1;
+				}
+				if (p == 0 && !last)
+					throw new IOException("Line " + line + " is too long");
+				position += p;
+			}
+		} catch (IOException e) {
+			// leave no partial results behind
+			count = 0;
+			table = new ModuleTable(0);
+			throw e;
+		} finally {
+			file.close();
+			// trim the arrays to the number of modules read
+			table.trim();
+			timeIndices = Arrays.copyOf(timeIndices, count);
+			roomIndices = Arrays.copyOf(roomIndices, count);
+			lines = Arrays.copyOf(lines, count);
+		}
+		nanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Parse a single line of the file into a module.
+	 * @param buffer the mapped bytes.
+	 * @param from the index of the first byte of the line.
+	 * @param to the index of the end of the line.
+	 * @param line the line number.
+	 * @throws IOException if the line is malformed, with a message saying why.
+	 */
+	private void parseLine(MappedByteBuffer buffer, int from, int to, int line)
+			throws IOException
+	{
+		// ignore a carriage return, and skip blank lines
+		if (to > from && buffer.get(to - 1) == '\r')
+			to--;
+		if (from == to)
+			return;
+
+		// find the start and end of the five fields
+		int[] starts = fieldStarts;
+		int[] ends = fieldEnds;
+		int fields = 0;
+		int p = from;
+		while (p < to)
+		{
+			while (p < to && buffer.get(p) == ' ')
+				p++;
+			if (p == to)
+				break;
+			if (fields == 5)
+				throw new IOException("more than 5 fields");
+			starts[fields] = p;
+			while (p < to && buffer.get(p) != ' ')
+				p++;
+			ends[fields++] = p;
+		}
+		if (fields != 5)
+			throw new IOException(fields + " fields, not 5");
+		if (ends[0] - starts[0] < 3)
+			throw new IOException("code shorter than 3 characters");
+
+		// read the size directly from the digits
+		int size = 0;
+		for (int i = starts[4]; i < ends[4]; i++)
+		{
+			int d = buffer.get(i) - '0';
+			if (d < 0 || d > 9 || size > (Integer.MAX_VALUE - d) / 10)
+				throw new IOException("invalid size");
+			size = size * 10 + d;
+		}
+
+		// grow the arrays if they are full
+		if (count == lines.length)
+		{
+			int capacity = lines.length * 2;
+			timeIndices = Arrays.copyOf(timeIndices, capacity);
+			roomIndices = Arrays.copyOf(roomIndices, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+		}
+
+		// add the module to the table, and look up its time and room
+		table.add(buffer, starts[0], ends[0], buffer, starts[1], ends[1], size);
+		timeIndices[count] = lookup(times, buffer, starts[2], ends[2]);
+		roomIndices[count] = lookup(rooms, buffer, starts[3], ends[3]);
+		lines[count] = line;
+		count++;
+	}
+
+	/**
+	 * Look up a time or room field in a table of names.
+	 * @param table the table of names.
+	 * @param buffer the mapped bytes.
+	 * @param from the index of the first byte of the field.
+	 * @param to the index of the end of the field.
+	 * @return the index of the name, {@link #UNSCHEDULED} or {@link #UNKNOWN}.
+	 */
+	private static int lookup(NameTable table, MappedByteBuffer buffer, int from, int to)
+	{
+		// a field made up only of question marks means not scheduled
+		boolean question = true;
+		for (int i = from; i < to && question; i++)
+			question = buffer.get(i) == '?';
+		if (question)
+			return UNSCHEDULED;
+		return table.indexOf(buffer, from, to);
+	}
+
+	//================================================================================
+    // Name table
+    //================================================================================
+
+	/**
+	 * Open addressing hash table from names to their index, which looks names
+	 * up directly from bytes, without creating a string.
+	 */
+	private static class NameTable
+	{
+		/** The bytes of each name, by slot of the table. */
+		private byte[][] keys;
+
+		/** The index of each name, by slot of the table. */
+		private int[] values;
+
+		/** One less than the size of the table, which is a power of two. */
+		private int mask;
+
+		/**
+		 * Instantiate the table from an array of names.
+		 * @param names the names, whose position in the array is their index.
+		 */
+		NameTable(String[] names)
+		{
+			int size = Integer.highestOneBit(Math.max(names.length, 1) * 4 - 1) << 1;
+			keys = new byte[size][];
+			values = new int[size];
+			mask = size - 1;
+			for (int i = 0; i < names.length; i++)
+			{
+				byte[] key = names[i].getBytes(StandardCharsets.UTF_8);
+				int h = hash(key, 0, key.length) & mask;
+				while (keys[h] != null)
+					h = (h + 1) & mask;
+				keys[h] = key;
+				values[h] = i;
+			}
+		}
+
+		/**
+		 * Look up a name held in a range of a buffer.
+		 * @param buffer the buffer.
+		 * @param from the index of the first byte of the name.
+		 * @param to the index of the end of the name.
+		 * @return the index of the name, or {@link #UNKNOWN}.
+		 */
+		int indexOf(MappedByteBuffer buffer, int from, int to)
+		{
+			int h = 1;
+			for (int i = from; i < to; i++)
+				h = 31 * h + buffer.get(i);
+			h = mix(h) & mask;
+			while (keys[h] != null)
+			{
+				if (matches(keys[h], buffer, from, to))
+					return values[h];
+				h = (h + 1) & mask;
+			}
+			return UNKNOWN;
+		}
+
+		/**
+		 * Check whether a key equals a range of a buffer.
+		 */
+		private static boolean matches(byte[] key, MappedByteBuffer buffer, int from, int to)
+		{
+			if (key.length != to - from)
+				return false;
+			for (int i = 0; i < key.length; i++)
+				if (key[i] != buffer.get(from + i))
+					return false;
+			return true;
+		}
+
+		/**
+		 * Hash a range of bytes, in the same way as {@link #indexOf}.
+		 */
+		private static int hash(byte[] b, int from, int to)
+		{
+			int h = 1;
+			for (int i = from; i < to; i++)
+				h = 31 * h + b[i];
+			return mix(h);
+		}
+
+		/**
+		 * Spread the bits of a hash so that the low bits are well mixed.
+		 */
+		private static int mix(int h)
+		{
+			h *= 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -0,0 +1,531 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Column store of the modules read from a module file. Each module is a row
+ * id, and its size and subject year id are held in int arrays indexed by
+ * id, so scans over the modules read contiguous memory. Codes and names are
+ * held once each as UTF-8 in a shared byte arena: every distinct string is
+ * interned as an entry of the arena, and a module holds only the ids of its
+ * code and name entries. Each entry is made into a string only once, the
+ * first time it is asked for. The {@link Module} objects handed out are
+ * light views of a row, one per id, so they may be compared by identity.
+ */
+public class ModuleTable {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** Result of find when there is no module with the code. */
+	public static final int NONE = -1;
+
+	/** The number of characters of a code which give its subject and year. */
+	private static final int SUBJECT_YEAR_LENGTH = 3;
+
+	/** The number of modules. */
+	private int count;
+
+	/** The number of students taking each module. */
+	private int[] sizes;
+
+	/** The subject year id of each module. */
+	private int[] subjectYears;
+
+	/** The entry holding the code of each module. */
+	private int[] codes;
+
+	/** The entry holding the name of each module. */
+	private int[] names;
+
+	/** The view of each module. */
+	private Module[] views;
+
+	/** The bytes of every entry, one after another. */
+	private byte[] arena = new byte[1024];
+
+	/** The number of bytes of the arena in use. */
+	private int arenaLength;
+
+	/** The number of entries in the arena. */
+	private int entries;
+
+	/** The start of each entry in the arena; entry e ends where e + 1 starts. */
+	private int[] entryStarts = new int[257];
+
+	/** For each entry, the first module with it as its code, or NONE. */
+	private int[] firstModule = new int[256];
+
+	/** The string of each entry, made the first time it is asked for, or null. */
+	private String[] strings = new String[256];
+
+	/** Open addressing hash table of the entries, holding entry + 1, or 0 if empty. */
+	private int[] entryTable = new int[512];
+
+	/** The name of each subject year, by id. */
+	private String[] subjectYearNames = new String[16];
+
+	/** The first module of each subject year, whose code holds its name. */
+	private int[] subjectYearModules = new int[16];
+
+	/** The number of subject years. */
+	private int subjectYearCount;
+
+	/** Open addressing hash table of the subject years, holding id + 1, or 0 if empty. */
+	private int[] subjectYearTable = new int[32];
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate an empty table with room for a given number of modules,
+	 * which grows as needed.
+	 * @param capacity the number of modules expected.
+	 */
+	public ModuleTable(int capacity)
+	{
+		capacity = Math.max(capacity, 16);
+		sizes = new int[capacity];
+		subjectYears = new int[capacity];
+		codes = new int[capacity];
+		names = new int[capacity];
+		views = new Module[capacity];
+	}
+
+	//================================================================================
+    // Get methods
+    //================================================================================
+
+	/**
+	 * Get the number of modules in the table.
+	 * @return the number of modules.
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the views of every module, in the order they were added.
+	 * @return array of modules, indexed by id.
+	 */
+	public Module[] getModules()
+	{
+		return Arrays.copyOf(views, count);
+	}
+
+	/**
+	 * Get the view of a module.
+	 * @param id the module id.
+	 * @return the module.
+	 */
+	public Module getModule(int id)
+	{
+		return views[id];
+	}
+
+	/**
+	 * Get the number of students taking a module.
+	 * @param id the module id.
+	 * @return the size of the module.
+	 */
+	public int getSize(int id)
+	{
+		return sizes[id];
+	}
+
+	/**
+	 * Get the subject year id of a module. Ids are given out from 0 in the
+	 * order the subject years are first seen.
+	 * @param id the module id.
+	 * @return the subject year id.
+	 */
+	public int getSubjectYearId(int id)
+	{
+		return subjectYears[id];
+	}
+
+	/**
+	 * Get the subject and year code of a module, i.e. the first 3 characters
+	 * of its code, which is made only once for each subject year.
+	 * @param id the module id.
+	 * @return the subject and year code.
+	 */
+	public String getSubjectYear(int id)
+	{
+		return subjectYearNames[subjectYears[id]];
+	}
+
+	/**
+	 * Get the number of different subject years.
+	 * @return the number of subject year ids given out.
+	 */
+	public int getSubjectYearCount()
+	{
+		return subjectYearCount;
+	}
+
+	/**
+	 * Get the code of a module, decoded from the arena the first time it is
+	 * asked for.
+	 * @param id the module id.
+	 * @return the code.
+	 */
+	public String getCode(int id)
+	{
+		return decode(codes[id]);
+	}
+
+	/**
+	 * Get the name of a module, decoded from the arena the first time it is
+	 * asked for.
+	 * @param id the module id.
+	 * @return the name.
+	 */
+	public String getName(int id)
+	{
+		return decode(names[id]);
+	}
+
+	/**
+	 * Find the module with a given code. If several modules share the code,
+	 * the first added is found.
+	 * @param code the code.
+	 * @return the module id, or NONE.
+	 */
+	public int find(String code)
+	{
+		byte[] b = code.getBytes(StandardCharsets.UTF_8);
+		int e = lookup(ByteBuffer.wrap(b), 0, b.length);
+		return e < 0 ? NONE : firstModule[e];
+	}
+
+	/**
+	 * Find the first module added with the same code as a given module.
+	 * @param id the module id.
+	 * @return the id of the first module with the code, which is id itself
+	 * unless the code was added before.
+	 */
+	public int first(int id)
+	{
+		return firstModule[codes[id]];
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Add a module whose code and name are given as strings, with a view
+	 * made by the module's own constructor.
+	 * @param view the view of the new module.
+	 * @param code the code, of at least 3 characters.
+	 * @param size the number of students.
+	 * @param name the name.
+	 * @return the id of the new module.
+	 */
+	int add(Module view, String code, int size, String name)
+	{
+		byte[] c = code.getBytes(StandardCharsets.UTF_8);
+		byte[] n = name.getBytes(StandardCharsets.UTF_8);
+		int id = addRow(ByteBuffer.wrap(c), 0, c.length, ByteBuffer.wrap(n), 0, n.length, size);
+		views[id] = view;
+		return id;
+	}
+
+	/**
+	 * Add a module whose code and name are read from UTF-8 bytes, such as
+	 * those of a mapped file, without making a string of either.
+	 * @param buffer the buffer holding the code.
+	 * @param codeFrom the index of the first byte of the code.
+	 * @param codeTo the index of the end of the code.
+	 * @param nameBuffer the buffer holding the name.
+	 * @param nameFrom the index of the first byte of the name.
+	 * @param nameTo the index of the end of the name.
+	 * @param size the number of students.
+	 * @return the id of the new module.
+	 */
+	public int add(ByteBuffer buffer, int codeFrom, int codeTo,
+			ByteBuffer nameBuffer, int nameFrom, int nameTo, int size)
+	{
+		int id = addRow(buffer, codeFrom, codeTo, nameBuffer, nameFrom, nameTo, size);
+		views[id] = new Module(this, id);
+		return id;
+	}
+
+	/**
+	 * Add the row of a module, without its view.
+	 * @param buffer the buffer holding the code.
+	 * @param codeFrom the index of the first byte of the code.
+	 * @param codeTo the index of the end of the code.
+	 * @param nameBuffer the buffer holding the name.
+	 * @param nameFrom the index of the first byte of the name.
+	 * @param nameTo the index of the end of the name.
+	 * @param size the number of students.
+	 * @return the id of the new module.
+	 */
+	private int addRow(ByteBuffer buffer, int codeFrom, int codeTo,
+			ByteBuffer nameBuffer, int nameFrom, int nameTo, int size)
+	{
+		// grow the columns if they are full
+		if (count == sizes.length)
+		{
+			int capacity = sizes.length * 2;
+			sizes = Arrays.copyOf(sizes, capacity);
+			subjectYears = Arrays.copyOf(subjectYears, capacity);
+			codes = Arrays.copyOf(codes, capacity);
+			names = Arrays.copyOf(names, capacity);
+			views = Arrays.copyOf(views, capacity);
+		}
+		int id = count++;
+		sizes[id] = size;
+		codes[id] = intern(buffer, codeFrom, codeTo);
+		names[id] = intern(nameBuffer, nameFrom, nameTo);
+		if (firstModule[codes[id]] == NONE)
+			firstModule[codes[id]] = id;
+		subjectYears[id] = subjectYear(id);
+		return id;
+	}
+
+	/**
+	 * Release the spare capacity of the columns and arena, once every module
+	 * has been added.
+	 */
+	public void trim()
+	{
+		sizes = Arrays.copyOf(sizes, count);
+		subjectYears = Arrays.copyOf(subjectYears, count);
+		codes = Arrays.copyOf(codes, count);
+		names = Arrays.copyOf(names, count);
+		views = Arrays.copyOf(views, count);
+		arena = Arrays.copyOf(arena, arenaLength);
+	}
+
+	/**
+	 * Write the code of a module as UTF-8, straight from the arena.
+	 * @param id the module id.
+	 * @param out the stream to write to.
+	 * @throws IOException if the write fails.
+	 */
+	public void writeCode(int id, OutputStream out) throws IOException
+	{
+		int e = codes[id];
+		out.write(arena, entryStarts[e], entryStarts[e + 1] - entryStarts[e]);
+	}
+
+	/**
+	 * Write the name of a module as UTF-8, straight from the arena.
+	 * @param id the module id.
+	 * @param out the stream to write to.
+	 * @throws IOException if the write fails.
+	 */
+	public void writeName(int id, OutputStream out) throws IOException
+	{
+		int e = names[id];
+		out.write(arena, entryStarts[e], entryStarts[e + 1] - entryStarts[e]);
+	}
+
+	/**
+	 * Get the string of an entry of the arena, making it the first time. As
+	 * strings are immutable, two threads which both make one are harmless.
+	 * @param e the entry.
+	 * @return the entry as a string.
+	 */
+	private String decode(int e)
+	{
+		String string = strings[e];
+		if (string == null)
+		{
+			string = new String(arena, entryStarts[e], entryStarts[e + 1] - entryStarts[e],
+					StandardCharsets.UTF_8);
+			strings[e] = string;
+		}
+		return string;
+	}
+
+	/**
+	 * Find the entry equal to a range of bytes, adding it to the arena if
+	 * there is none.
+	 * @param buffer the buffer holding the bytes.
+	 * @param from the index of the first byte.
+	 * @param to the index of the end of the bytes.
+	 * @return the entry.
+	 */
+	private int intern(ByteBuffer buffer, int from, int to)
+	{
+		int e = lookup(buffer, from, to);
+		if (e >= 0)
+			return e;
+
+		// grow the arena and the entry arrays if they are full
+		int length = to - from;
+		if (arenaLength + length > arena.length)
+			arena = Arrays.copyOf(arena, Math.max(arenaLength + length, arena.length * 2));
+		if (entries == firstModule.length)
+		{
+			firstModule = Arrays.copyOf(firstModule, entries * 2);
+			strings = Arrays.copyOf(strings, entries * 2);
+			entryStarts = Arrays.copyOf(entryStarts, entries * 2 + 1);
+		}
+
+		// copy the bytes in as a new entry
+		e = entries++;
+		buffer.get(from, arena, arenaLength, length);
+		entryStarts[e] = arenaLength;
+		arenaLength += length;
+		entryStarts[e + 1] = arenaLength;
+		firstModule[e] = NONE;
+
+		// keep the hash table at most half full
+		if (entries * 2 > entryTable.length)
+			rehash();
+		else
+			insert(e);
+		return e;
+	}
+
+	/**
+	 * Look up the entry equal to a range of bytes.
+	 * @param buffer the buffer holding the bytes.
+	 * @param from the index of the first byte.
+	 * @param to the index of the end of the bytes.
+	 * @return the entry, or -1 if there is none.
+	 */
+	private int lookup(ByteBuffer buffer, int from, int to)
+	{
+		int mask = entryTable.length - 1;
+		int h = hash(buffer, from, to) & mask;
+		while (entryTable[h] != 0)
+		{
+			int e = entryTable[h] - 1;
+			if (matches(e, buffer, from, to))
+				return e;
+			h = (h + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check whether an entry equals a range of bytes.
+	 */
+	private boolean matches(int e, ByteBuffer buffer, int from, int to)
+	{
+		int start = entryStarts[e];
+		if (entryStarts[e + 1] - start != to - from)
+			return false;
+		for (int i = from; i < to; i++)
+			if (arena[start++] != buffer.get(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Put an entry into the hash table.
+	 * @param e the entry.
+	 */
+	private void insert(int e)
+	{
+		int mask = entryTable.length - 1;
+		int h = hash(ByteBuffer.wrap(arena), entryStarts[e], entryStarts[e + 1]) & mask;
+		while (entryTable[h] != 0)
+			h = (h + 1) & mask;
+		entryTable[h] = e + 1;
+	}
+
+	/**
+	 * Double the size of the hash table and put every entry back in.
+	 */
+	private void rehash()
+	{
+		entryTable = new int[entryTable.length * 2];
+		for (int e = 0; e < entries; e++)
+			insert(e);
+	}
+
+	/**
+	 * Find the subject year id of a newly added module from the first 3
+	 * characters of its code, giving out a new id if it is the first module
+	 * of its subject year.
+	 * @param id the module id.
+	 * @return the subject year id.
+	 */
+	private int subjectYear(int id)
+	{
+		int from = entryStarts[codes[id]];
+		int to = prefixEnd(from, entryStarts[codes[id] + 1]);
+		ByteBuffer bytes = ByteBuffer.wrap(arena);
+
+		// look for a subject year whose first module's code starts the same way
+		int mask = subjectYearTable.length - 1;
+		int h = hash(bytes, from, to) & mask;
+		while (subjectYearTable[h] != 0)
+		{
+			int y = subjectYearTable[h] - 1;
+			int start = entryStarts[codes[subjectYearModules[y]]];
+			int end = prefixEnd(start, entryStarts[codes[subjectYearModules[y]] + 1]);
+			if (Arrays.equals(arena, start, end, arena, from, to))
+				return y;
+			h = (h + 1) & mask;
+		}
+
+		// give out a new id
+		int y = subjectYearCount++;
+		if (y == subjectYearNames.length)
+		{
+			subjectYearNames = Arrays.copyOf(subjectYearNames, y * 2);
+			subjectYearModules = Arrays.copyOf(subjectYearModules, y * 2);
+		}
+		subjectYearNames[y] = new String(arena, from, to - from, StandardCharsets.UTF_8);
+		subjectYearModules[y] = id;
+		subjectYearTable[h] = y + 1;
+		if (subjectYearCount * 2 > subjectYearTable.length)
+		{
+			// double the table and put every subject year back in
+			subjectYearTable = new int[subjectYearTable.length * 2];
+			mask = subjectYearTable.length - 1;
+			for (int i = 0; i < subjectYearCount; i++)
+			{
+				int start = entryStarts[codes[subjectYearModules[i]]];
+				int end = prefixEnd(start, entryStarts[codes[subjectYearModules[i]] + 1]);
+				h = hash(bytes, start, end) & mask;
+				while (subjectYearTable[h] != 0)
+					h = (h + 1) & mask;
+				subjectYearTable[h] = i + 1;
+			}
+		}
+		return y;
+	}
+
+	/**
+	 * Find the end of the first 3 characters of a code in the arena, or of
+	 * the whole code if it is shorter.
+	 * @param from the start of the code.
+	 * @param to the end of the code.
+	 * @return the end of the subject and year.
+	 */
+	private int prefixEnd(int from, int to)
+	{
+		// count the bytes which start a character, stopping at the fourth
+		int chars = 0;
+		for (int i = from; i < to; i++)
+			if ((arena[i] & 0xC0) != 0x80 && chars++ == SUBJECT_YEAR_LENGTH)
+				return i;
+		return to;
+	}
+
+	/**
+	 * Hash a range of bytes, spreading the bits so the low bits are well mixed.
+	 */
+	private static int hash(ByteBuffer buffer, int from, int to)
+	{
+		int h = 1;
+		for (int i = from; i < to; i++)
+			h = 31 * h + buffer.get(i);
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -1,162 +1,346 @@
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Font;
-import java.awt.GridLayout;
+import java.awt.FontMetrics;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.util.*;
+import javax.swing.AbstractListModel;
 import javax.swing.BorderFactory;
-import javax.swing.JButton;
-import javax.swing.JPanel;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.ListCellRenderer;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingConstants;
 
 /**
  * Class to display the list of modules as part of the GUI.
- * Modules are displayed as {@link JButtons}, with one
- * corresponding to each module. Includes methods to change 
- * colour and text of a given button.
+ * Modules are displayed as rows of a {@link JList}, which only paints
+ * the rows that are visible, using a single renderer styled like a button.
+ * Includes methods to change the colour and text of a given row, which
+ * repaint just that row.
  */
 @SuppressWarnings("serial")
-public class ModuleView extends JPanel {
-	
+public class ModuleView extends JList<Module> {
+
 	//================================================================================
     // Properties
     //================================================================================
-	
-	/** 
-	 * The buttons, as a {@link HashMap} enabling a button to be looked
-	 * up via its module.
+
+	/**
+	 * Listener which is told when a module in the view is pressed.
 	 */
-    private HashMap<Module, JButton> buttons = new HashMap<Module, JButton>();
-    
-    /** The colour to turn the module button for the
-     * module which is being moved at the moment. 
+	public interface ModulePressedListener
+	{
+		/**
+		 * Called when a module is pressed.
+		 * @param module the module.
+		 */
+		void modulePressed(Module module);
+	}
+
+	/** The modules in the list, in display order. */
+	private Module[] modules;
+
+	/** The row of each module, indexed by module id. */
+    private int[] rows;
+
+    /** The text of each row. */
+    private String[] text;
+
+    /** The style of each row: one of UNSCHEDULED, SCHEDULED or HIGHLIGHTED. */
+    private byte[] style;
+
+    /** Style of a row whose module is not scheduled. */
+    private static final byte UNSCHEDULED = 0;
+
+    /** Style of a row whose module is scheduled. */
+    private static final byte SCHEDULED = 1;
+
+    /** Style of a row whose module is being moved. */
+    private static final byte HIGHLIGHTED = 2;
+
+    /** The start of the text of a row whose module is pinned. */
+    private static final String PINNED_MARK = "* ";
+
+    /** The listeners told when a module is pressed. */
+    private ArrayList<ModulePressedListener> listeners =
+    		new ArrayList<ModulePressedListener>();
+
+    /** The colour to turn the module row for the
+     * module which is being moved at the moment.
      */
     private final Color HIGHLIGHT_COLOR = new Color(0xBBDEFB);
-    
-    /** The colour to turn a module button once it has been 
+
+    /** The colour to turn a module row once it has been
      * scheduled.
      */
     private final Color SCHEDULED_COLOR = new Color(0x1976D2);
-    
+
     /** The color of the borders of the slots of the timetable. */
 	private final Color BORDER_COLOR = new Color(0x889db3);
-    
+
+	/** The colour of the text of rows while the view is disabled. */
+	private final Color DISABLED_COLOR = new Color(0x8A8A8A);
+
     //================================================================================
     // Constructor and helper methods
     //================================================================================
-    
+
     /**
      * Instantiate the module view from a given array of modules.
      * @param modules the modules to display in the list.
+     * @param slots the slots of the timetable, whose times and rooms the
+     * rows may show.
      */
-	public ModuleView(Module[] modules) 
+	public ModuleView(final Module[] modules, Slot[][] slots)
 	{
-		// set up grid layout
-		super(new GridLayout(modules.length, 1));
-
-		// add a button for each module to the grid layout
+		this.modules = modules;
+		text = new String[modules.length];
+		style = new byte[modules.length];
+		int ids = 0;
 		for (int i = 0; i < modules.length; i++)
-			addButtonForModule(modules[i]);
-		
-		// buttons not enabled at the start of the program
+			ids = Math.max(ids, modules[i].getId() + 1);
+		rows = new int[ids];
+		for (int i = 0; i < modules.length; i++)
+			rows[modules[i].getId()] = i;
+
+		// list model over the module array, which never changes
+		setModel(new AbstractListModel<Module>() {
+			public int getSize() {
+				return modules.length;
+			}
+			public Module getElementAt(int index) {
+				return modules[index];
+			}
+		});
+
+		// rows are styled by the renderer, not by selection
+		setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		setCellRenderer(new ModuleRenderer());
+		setupMouseListener();
+
+		// every row is the same size, so the list never measures each row;
+		// the list still stretches to fill the width of its scroll pane
+		ModuleRenderer sizer = new ModuleRenderer();
+		sizer.setText(prototype(sizer.getFontMetrics(sizer.getFont()), modules, slots));
+		setFixedCellHeight(sizer.getPreferredSize().height);
+		setFixedCellWidth(sizer.getPreferredSize().width);
+
+		// rows not enabled at the start of the program
 		setButtonsEnabled(false);
 	}
-	
+
+	/**
+	 * Make the text of a row as wide as any row can be, from the widest
+	 * code and size of the modules and the widest time and room name of the
+	 * timetable, with room for the mark of a pinned module. The question
+	 * marks of an unscheduled module count as a time and room.
+	 * @param metrics the metrics of the font of the rows.
+	 * @param modules the modules of the rows.
+	 * @param slots the slots of the timetable.
+	 * @return the text.
+	 */
+	private static String prototype(FontMetrics metrics, Module[] modules, Slot[][] slots)
+	{
+		String code = "";
+		String size = "";
+		for (int i = 0; i < modules.length; i++)
+		{
+			code = wider(metrics, code, modules[i].getCode());
+			size = wider(metrics, size, String.valueOf(modules[i].getSize()));
+		}
+		String time = "?????";
+		String room = "?";
+		for (int i = 0; i < slots.length; i++)
+			for (int j = 0; j < slots[i].length; j++)
+			{
+				time = wider(metrics, time, slots[i][j].getTime());
+				room = wider(metrics, room, slots[i][j].getName());
+			}
+		return PINNED_MARK + code + "  " + size + "  -  " + time + "  " + room;
+	}
+
+	/**
+	 * Choose the wider of two strings in a font.
+	 * @param metrics the metrics of the font.
+	 * @param a one string.
+	 * @param b the other string.
+	 * @return b if it is wider than a, otherwise a.
+	 */
+	private static String wider(FontMetrics metrics, String a, String b)
+	{
+		return metrics.stringWidth(b) > metrics.stringWidth(a) ? b : a;
+	}
+
 	/**
-	 * Add a module button to the view.
-	 * @param module the module for which to add a button.
+	 * Tell the listeners when a row is clicked while the view is enabled.
 	 */
-	private void addButtonForModule(Module module)
+	private void setupMouseListener()
 	{
-		// create the button
-		JButton b = new JButton();
-		
-		// set the style of the button
-		b.setBackground(Color.WHITE);
-		b.setForeground(SCHEDULED_COLOR);
-		b.setFont(new Font("Arial", Font.BOLD, 15));
-		b.setBorder(BorderFactory.createCompoundBorder(
-		        BorderFactory.createLineBorder(BORDER_COLOR, 1), 
-		        BorderFactory.createEmptyBorder(10, 0, 10, 0)));
-		b.setFocusPainted(false);
-		
-		// add button to view, and store in buttons HashMap
-		this.add(b);
-		buttons.put(module, b);
+		addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				if (!isEnabled())
+					return;
+				// find the row under the mouse, ignoring clicks below the last row
+				int i = locationToIndex(e.getPoint());
+				if (i < 0 || !getCellBounds(i, i).contains(e.getPoint()))
+					return;
+				for (int j = 0; j < listeners.size(); j++)
+					listeners.get(j).modulePressed(modules[i]);
+			}
+		});
 	}
-	
+
+	/**
+	 * Renderer which draws a module row in the style of a button.
+	 */
+	private class ModuleRenderer extends JLabel implements ListCellRenderer<Module>
+	{
+		/**
+		 * Instantiate the renderer, setting the fixed parts of its style.
+		 */
+		ModuleRenderer()
+		{
+			setOpaque(true);
+			setHorizontalAlignment(SwingConstants.CENTER);
+			setFont(new Font("Arial", Font.BOLD, 15));
+			setBorder(BorderFactory.createCompoundBorder(
+			        BorderFactory.createLineBorder(BORDER_COLOR, 1),
+			        BorderFactory.createEmptyBorder(10, 0, 10, 0)));
+		}
+
+		/**
+		 * Style the renderer for a given row.
+		 */
+		public Component getListCellRendererComponent(JList<? extends Module> list,
+				Module value, int index, boolean isSelected, boolean cellHasFocus)
+		{
+			// an empty label would collapse, so use a space for rows without text
+			setText(text[index] == null || text[index].isEmpty() ? " " : text[index]);
+			switch (style[index])
+			{
+			case SCHEDULED:
+				setBackground(SCHEDULED_COLOR);
+				setForeground(Color.WHITE);
+				break;
+			case HIGHLIGHTED:
+				setBackground(HIGHLIGHT_COLOR);
+				setForeground(SCHEDULED_COLOR);
+				break;
+			default:
+				setBackground(Color.WHITE);
+				setForeground(SCHEDULED_COLOR);
+			}
+			if (!list.isEnabled())
+				setForeground(DISABLED_COLOR);
+			return this;
+		}
+	}
+
 	//================================================================================
     // Program Methods
     //================================================================================
-	
+
 	/**
-	 * Get the button which corresponds to a given module.
-	 * @param module the given module.
-	 * @return the {@link JButton} corresponding to it.
+	 * Add a listener to be told when a module is pressed.
+	 * @param listener the listener.
 	 */
-	public JButton getButtonForModule(Module module)
+	public void addModulePressedListener(ModulePressedListener listener)
 	{
-		// look up the button in the buttons HashMap
-		return buttons.get(module);
+		listeners.add(listener);
 	}
-	
-	
+
 	/**
-	 * Change the colour of a module button to indicate that
+	 * Change the colour of a module row to indicate that
 	 * its module is being moved.
 	 * @param module the module to highlight.
 	 */
 	public void highlightModule(Module module)
 	{
-		// get the button and change its style
-		JButton button = buttons.get(module);
-		button.setBackground(HIGHLIGHT_COLOR);
-		button.setForeground(SCHEDULED_COLOR);
+		setStyle(module, HIGHLIGHTED);
 	}
-	
+
 	/**
-	 * Change the colour of a module button to indicate that
+	 * Change the colour of a module row to indicate that
 	 * its module has been scheduled.
 	 * @param module the module which has been scheduled.
 	 */
 	public void makeScheduled(Module module)
 	{
-		// get the button and change its style.
-		JButton button = buttons.get(module);
-		button.setBackground(SCHEDULED_COLOR);
-		button.setForeground(Color.WHITE);
+		setStyle(module, SCHEDULED);
 	}
-	
+
 	/**
-	 * Change the colour of a module button to indicate that
+	 * Change the colour of a module row to indicate that
 	 * its module is no longer scheduled.
 	 * @param module the module which has been scheduled.
 	 */
 	public void makeUnscheduled(Module module)
 	{
-		// get the button and change its style.
-		JButton button = buttons.get(module);
-		button.setBackground(Color.WHITE);
-		button.setForeground(SCHEDULED_COLOR);
+		setStyle(module, UNSCHEDULED);
 	}
-	
+
 	/**
-	 * Update the text on a given module button.
-	 * @param module the module whose button needs changed.
+	 * Update the text on a given module row.
+	 * @param module the module whose row needs changed.
 	 * @param text the new text to display.
 	 */
-	public void setTextForButton(Module module, String text)
+	public void setTextForModule(Module module, String text)
 	{
-		buttons.get(module).setText(text);
+		int i = rows[module.getId()];
+		this.text[i] = text;
+		repaintRow(i);
 	}
-	
+
+	/**
+	 * Mark a module row to show that its module is pinned, until its text
+	 * is next changed.
+	 * @param module the pinned module.
+	 */
+	public void markPinned(Module module)
+	{
+		int i = rows[module.getId()];
+		if (text[i] == null || text[i].startsWith(PINNED_MARK))
+			return;
+		text[i] = PINNED_MARK + text[i];
+		repaintRow(i);
+	}
+
 	/**
-	 * Set all the buttons in the view to be either enabled
+	 * Set all the rows in the view to be either enabled
 	 * or disabled.
-	 * @param enabled whether the buttons are to be enabled or not.
+	 * @param enabled whether the rows are to be enabled or not.
 	 */
 	public void setButtonsEnabled(boolean enabled)
 	{
-		// get the buttons and set each en/dis-abled
-		JButton[] b = buttons.values().toArray(new JButton[0]);
-		for (int i = 0; i < b.length; i++)
-			b[i].setEnabled(enabled);
+		// one flag for the whole list, which is repainted
+		setEnabled(enabled);
+	}
+
+	/**
+	 * Set the style of a module's row, repainting it if it has changed.
+	 * @param module the module.
+	 * @param s the new style.
+	 */
+	private void setStyle(Module module, byte s)
+	{
+		int i = rows[module.getId()];
+		if (style[i] == s)
+			return;
+		style[i] = s;
+		repaintRow(i);
+	}
+
+	/**
+	 * Repaint a single row, if it is visible.
+	 * @param i the index of the row.
+	 */
+	private void repaintRow(int i)
+	{
+		Rectangle r = getCellBounds(i, i);
+		if (r != null)
+			repaint(r);
 	}
 }
@@ -0,0 +1,294 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Solver which runs a portfolio of differently configured
+ * {@link AutoScheduler}s at once on a {@link ForkJoinPool}, one per worker
+ * thread. The first uses the plain scheduler's settings, so the portfolio
+ * never does worse than it; the others cycle through the orderings, each
+ * with its own random seed. A search which gets stuck on one ordering is
+ * often easy for another, so the portfolio finds a timetable as soon as the
+ * quickest of them does.
+ * <p>
+ * Each search works only on its own counts of the timetable, read from the
+ * model when it starts. The first to find a complete timetable wins and
+ * cancels the others, and only the winner's timetable is put into the model.
+ * As with the auto scheduler, the model should not be changed while the
+ * portfolio runs.
+ */
+public class PortfolioSolver {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The model whose unscheduled modules are to be placed. */
+	private ProgramModel model;
+
+	/** The number of searches run at once. */
+	private int workers;
+
+	/** The seed of the first randomised search; the others follow it. */
+	private long seed = 1;
+
+	/** The number of backtracks after which each search gives up. */
+	private long maxBacktracks = 1000000;
+
+	/** The searches of the last run. */
+	private volatile AutoScheduler[] schedulers = new AutoScheduler[0];
+
+	/** The search which found the timetable, or null. */
+	private AtomicReference<AutoScheduler> winner = new AtomicReference<AutoScheduler>();
+
+	/** Why the last run was found to be impossible before it began, if it was. */
+	private List<String> reasons = new ArrayList<String>();
+
+	/** Whether the solver has been asked to stop. */
+	private volatile boolean cancelled;
+
+	/** The listener told how far the searches have got, if any. */
+	private AutoScheduler.ProgressListener progressListener;
+
+	/** Time taken by each portfolio run. */
+	private static final LatencyTimer PORTFOLIO_TIMER = Metrics.timer("portfolio.run");
+
+	/** Number of portfolio runs which found no timetable, or were cancelled. */
+	private static final Counter FAILURES = Metrics.counter("portfolio.failures");
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate a portfolio with one search per available processor.
+	 * @param model the model to schedule.
+	 */
+	public PortfolioSolver(ProgramModel model)
+	{
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiate a portfolio with a given number of searches.
+	 * @param model the model to schedule.
+	 * @param workers the number of searches run at once.
+	 */
+	public PortfolioSolver(ProgramModel model, int workers)
+	{
+		this.model = model;
+		this.workers = Math.max(workers, 1);
+	}
+
+	//================================================================================
+    // Get and set methods
+    //================================================================================
+
+	/**
+	 * Set the number of backtracks after which each search gives up.
+	 * @param maxBacktracks the backtrack limit.
+	 */
+	public void setMaxBacktracks(long maxBacktracks)
+	{
+		this.maxBacktracks = maxBacktracks;
+	}
+
+	/**
+	 * Set the seed of the first randomised search, so that runs can be
+	 * repeated.
+	 * @param seed the seed.
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the listener to be told how far the searches have got. It is told
+	 * the most modules placed by any search, on that search's thread.
+	 * @param listener the listener.
+	 */
+	public void setProgressListener(AutoScheduler.ProgressListener listener)
+	{
+		this.progressListener = listener;
+	}
+
+	/**
+	 * Ask the running searches to stop, which they do as if they had failed,
+	 * and any later run to fail at once. This may be called from any thread.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+		AutoScheduler[] running = schedulers;
+		for (int i = 0; i < running.length; i++)
+			running[i].cancel();
+	}
+
+	/**
+	 * Check whether the solver has been asked to stop.
+	 * @return true if cancel has been called.
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Get the reasons the last run was found to be impossible without
+	 * searching, by {@link FeasibilityCheck}.
+	 * @return the reasons, empty if the searches went ahead.
+	 */
+	public List<String> getReasons()
+	{
+		return reasons;
+	}
+
+	/**
+	 * Get the number of backtracks made by every search of the last run.
+	 * @return the number of backtracks.
+	 */
+	public long getBacktracks()
+	{
+		long total = 0;
+		for (int i = 0; i < schedulers.length; i++)
+			total += schedulers[i].getBacktracks();
+		return total;
+	}
+
+	/**
+	 * Describe the search which found the timetable in the last run.
+	 * @return its number, ordering and backtracks, or null if none did.
+	 */
+	public String getWinner()
+	{
+		AutoScheduler w = winner.get();
+		if (w == null)
+			return null;
+		int i = 0;
+		while (schedulers[i] != w)
+			i++;
+		return "search " + i + " (" + w.getOrdering() + ", " + w.getBacktracks() + " backtracks)";
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Place every unscheduled module in the model, using whichever search
+	 * finds a complete timetable first. Modules which were already scheduled
+	 * are left where they are. If no search finds a complete timetable, the
+	 * model is left as it was.
+	 * @return true if every module was scheduled, false otherwise.
+	 */
+	public boolean schedule()
+	{
+		long start = Metrics.start();
+		boolean scheduled = run();
+		PORTFOLIO_TIMER.stop(start);
+		if (!scheduled)
+			FAILURES.add(1);
+		return scheduled;
+	}
+
+	/**
+	 * Run the searches for schedule.
+	 * @return true if every module was scheduled, false otherwise.
+	 */
+	private boolean run()
+	{
+		winner.set(null);
+
+		// fail at once if counting shows there is no timetable, checking
+		// once for all the searches
+		FeasibilityCheck check = new FeasibilityCheck(model);
+		reasons = check.getReasons();
+		if (!check.check())
+			return false;
+
+		// configure the searches, the first as the plain scheduler
+		AutoScheduler.Ordering[] orderings = AutoScheduler.Ordering.values();
+		final AtomicInteger mostPlaced = new AtomicInteger();
+		AutoScheduler[] s = new AutoScheduler[workers];
+		for (int i = 0; i < workers; i++)
+		{
+			s[i] = new AutoScheduler(model);
+			s[i].setMaxBacktracks(maxBacktracks);
+			if (i > 0)
+			{
+				s[i].setOrdering(orderings[i % orderings.length]);
+				s[i].setSeed(seed + i - 1);
+			}
+			if (progressListener != null)
+				s[i].setProgressListener(new AutoScheduler.ProgressListener() {
+					public void progress(int placed, int total) {
+						// only report progress beyond what any search has reached
+						int most = mostPlaced.get();
+						if (placed > most && mostPlaced.compareAndSet(most, placed))
+							progressListener.progress(placed, total);
+					}
+				});
+		}
+		schedulers = s;
+		// a cancel which came before the searches were made stops them all
+		if (cancelled)
+			cancel();
+
+		// run every search, until one wins or all fail
+		ForkJoinPool pool = new ForkJoinPool(workers);
+		try {
+			ArrayList<Search> tasks = new ArrayList<Search>();
+			for (int i = 0; i < workers; i++)
+				tasks.add(new Search(s[i]));
+			pool.invoke(new RecursiveAction() {
+				protected void compute() {
+					ForkJoinTask.invokeAll(tasks);
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+
+		// put the winning timetable into the model
+		AutoScheduler w = winner.get();
+		if (w == null || cancelled)
+			return false;
+		return w.apply();
+	}
+
+	/**
+	 * Task running one search of the portfolio.
+	 */
+	@SuppressWarnings("serial")
+	private class Search extends RecursiveAction
+	{
+		/** The search to run. */
+		private AutoScheduler scheduler;
+
+		/**
+		 * Instantiate a task for a search.
+		 * @param scheduler the search.
+		 */
+		Search(AutoScheduler scheduler)
+		{
+			this.scheduler = scheduler;
+		}
+
+		/**
+		 * Run the search, and if it is the first to find a timetable,
+		 * cancel the others.
+		 */
+		protected void compute()
+		{
+			if (scheduler.solve() && winner.compareAndSet(null, scheduler))
+				for (int i = 0; i < schedulers.length; i++)
+					if (schedulers[i] != scheduler)
+						schedulers[i].cancel();
+		}
+	}
+}
@@ -1,11 +1,24 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The controller of the program. Responsible for 
  * managing button presses and updating view (made up of timetable view and 
  * module view) and model (program model) appropriately.
+ * <p>
+ * Work on the model which may take a long time on a large timetable - finding
+ * the valid slots for a module, saving, and auto scheduling - is run on the
+ * {@link ModelExecutor}, so the event thread stays free to paint. Results are
+ * handed back to the event thread in batches as they are found.
+ * <p>
+ * The view is kept up to date by listening to the model's schedule changes,
+ * so the controller only changes the model, and tells the view about the
+ * selection.
  */
 public class ProgramController
 {
@@ -29,6 +42,46 @@ public class ProgramController
 	/** Whether editing the timetable is enabled. */
 	private boolean editEnabled;
 	
+	/** The executor which runs work on the model off the event thread. */
+	private ModelExecutor executor = new ModelExecutor();
+	
+	/** The running search for the selected module's valid slots, if any. */
+	private SwingWorker<Void, Slot[]> query;
+	
+	/** The repairer which pins modules, moving others out of their way. */
+	private ScheduleRepairer repairer;
+	
+	/** The scheduler of the running auto schedule, if any. */
+	private AutoScheduler autoScheduler;
+	
+	/** 
+	 * Whether a save or auto schedule is running, during which presses are 
+	 * ignored so the model is not changed under it.
+	 */
+	private boolean busy;
+
+	/** Whether the window is being closed, so that closing it again does nothing. */
+	private boolean closing;
+	
+	/** Time spent on the event thread handling slot presses. */
+	private final static LatencyTimer SLOT_TIMER = Metrics.timer("edt.slotPressed");
+	
+	/** Time spent on the event thread handling module presses. */
+	private final static LatencyTimer MODULE_TIMER = Metrics.timer("edt.modulePressed");
+	
+	/** Time spent on the event thread handling edit button presses. */
+	private final static LatencyTimer EDIT_TIMER = Metrics.timer("edt.editPressed");
+	
+	/** Time spent on the event thread handling auto schedule button presses. */
+	private final static LatencyTimer AUTO_TIMER = Metrics.timer("edt.autoPressed");
+	
+	/** Time spent on the event thread showing schedule changes. */
+	private final static LatencyTimer CHANGES_TIMER = Metrics.timer("edt.scheduleChanged");
+	
+	/** Number of rows of the timetable searched for valid slots in each batch. */
+	private final static int QUERY_ROWS = 64;
+	
+	
 	//================================================================================
     // Constructor and setup methods
     //================================================================================
@@ -40,56 +93,72 @@ public class ProgramController
 	public ProgramController ()
 	{
 		model = new ProgramModel();
+		repairer = new ScheduleRepairer(model);
 		view = new ProgramView(model.getSlots(), model.getModules());
+		setupScheduleListener();
 		setupTimetableButtons();
 		setupModuleButtons();
 		setupEditButton();
+		setupAutoButton();
 		setupQuitButton();
 		loadData();	
+		showProblems();
 	}
 	
 	/**
-	 * Adds an {@link ActionListener} to each slot button in the timetable
-	 * view, so that slotPressed is called when the button is pressed.
+	 * Adds a listener to the model, so that the view shows every change to 
+	 * the schedule.
 	 */
-	private void setupTimetableButtons()
+	private void setupScheduleListener()
 	{
-		Slot[][] slots = model.getSlots();
-		
-		// loop over slots and add action listener to matching button
-		for (int i = 0; i < slots.length; i++)
-			for (int j = 0; j < slots[0].length; j++)
-			{
-				final Slot slot = slots[i][j];
-				view.getTimetableView().getButtonAtSlot(slot).addActionListener(
-					new ActionListener() {
-						public void actionPerformed(ActionEvent e) {
-							slotPressed(slot);
-						}
+		model.addScheduleListener(new ProgramModel.ScheduleListener() {
+			public void scheduleChanged(final List<ScheduleEvent> events) {
+				// show the changes on the event thread, timing how long it takes
+				Runnable show = new Runnable() {
+					public void run() {
+						long start = Metrics.start();
+						view.scheduleChanged(events);
+						CHANGES_TIMER.stop(start);
 					}
-				);
+				};
+				if (SwingUtilities.isEventDispatchThread())
+					show.run();
+				else
+					SwingUtilities.invokeLater(show);
 			}
+		});
+	}
+	
+	/**
+	 * Adds a listener to the timetable view, so that slotPressed is called 
+	 * when a slot is pressed, pinning the selected module if shift is held.
+	 */
+	private void setupTimetableButtons()
+	{
+		view.getTimetableView().addSlotPressedListener(
+				new TimetableView.SlotPressedListener() {
+					public void slotPressed(Slot slot, boolean pin) {
+						long start = Metrics.start();
+						ProgramController.this.slotPressed(slot, pin);
+						SLOT_TIMER.stop(start);
+					}
+				});
 	}
 	
 	/**
-	 * Adds an {@link ActionListener} to each module button in the module
-	 * view, so that modulePressed is called when the button is pressed.
+	 * Adds a listener to the module view, so that modulePressed is called 
+	 * when a module is pressed.
 	 */
 	private void setupModuleButtons()
 	{
-		Module[] modules = model.getModules();
-		
-		// loop over slots and add action listener to matching button
-		for (int i = 0; i < modules.length; i++)
-		{
-			final Module module = modules[i];
-			view.getModuleView().getButtonForModule(module).addActionListener(
-					new ActionListener() {
-						public void actionPerformed(ActionEvent e) {
-							modulePressed(module);
-						}
-					});
-		}
+		view.getModuleView().addModulePressedListener(
+				new ModuleView.ModulePressedListener() {
+					public void modulePressed(Module module) {
+						long start = Metrics.start();
+						ProgramController.this.modulePressed(module);
+						MODULE_TIMER.stop(start);
+					}
+				});
 	}
 	
 	/**
@@ -101,22 +170,50 @@ public class ProgramController
 		view.getEditButton().addActionListener(
 			new ActionListener() {
 				public void actionPerformed(ActionEvent e) {
+					long start = Metrics.start();
 					editPressed();
+					EDIT_TIMER.stop(start);
+				}
+			});
+	}
+	
+	/**
+	 * Adds an {@link ActionListener} to the auto schedule button, so that
+	 * autoPressed is called when it is pressed.
+	 */
+	private void setupAutoButton()
+	{
+		view.getAutoButton().addActionListener(
+			new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					long start = Metrics.start();
+					autoPressed();
+					AUTO_TIMER.stop(start);
 				}
 			});
 	}
 	
 	/**
 	 * Set the program to call the save to file method
-	 * when the gui is closed, then quit the program.
+	 * when the gui is closed, then quit the program. The executor takes no
+	 * more work once the save is queued.
 	 */
 	private void setupQuitButton()
 	{
 		// add custom window close method
 		view.addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent event){
-				saveToFile();
-				System.exit(0);
+				// closing again while the save runs does nothing
+				if (closing)
+					return;
+				closing = true;
+				// stop any auto schedule, which leaves the model as it was,
+				// then save and quit once the save is done
+				if (autoScheduler != null)
+					autoScheduler.cancel();
+				deselectModule();
+				saveToFile(true);
+				executor.shutdown();
 			}
 		});
 	}
@@ -129,14 +226,12 @@ public class ProgramController
 	{
 		// get the slots which have a module in them
 		Slot[] filledSlots = model.getFilledSlots();
-		// load each slot into view (text field blank as text is set below)
+		// show each as if its module had just been placed
+		ArrayList<ScheduleEvent> placed = new ArrayList<ScheduleEvent>();
 		for (int i = 0; i < filledSlots.length; i++)
-			view.scheduleModule(
-					model.moduleInSlot(filledSlots[i]), 
-					filledSlots[i],
-					"",
-					null
-				);
+			placed.add(new ScheduleEvent(model.moduleInSlot(filledSlots[i]), 
+					null, filledSlots[i]));
+		view.scheduleChanged(placed);
 
 		// get all the modules
 		Module[] ms = model.getModules();
@@ -145,6 +240,25 @@ public class ProgramController
 			view.loadUnscheduledModule(ms[i], model.lineForModule(ms[i]));
 	}
 	
+	/**
+	 * Tell the user about any problems found in the input file, whose
+	 * modules have been left unscheduled, and in the enrolment file, whose
+	 * lines have been skipped.
+	 */
+	private void showProblems()
+	{
+		ValidationReport report = model.getValidationReport();
+		if (!report.isEmpty())
+			showMessage("Problems were found in ModulesIn.txt, and the modules on these "
+					+ "lines have been left unscheduled:\n\n" + report.summary(20),
+					"Problems in ModulesIn.txt", JOptionPane.WARNING_MESSAGE);
+		ConflictGraph conflicts = model.getConflictGraph();
+		if (conflicts != null && !conflicts.getReport().isEmpty())
+			showMessage("Problems were found in " + ProgramModel.ENROLMENT_FILE
+					+ ", and these lines have been skipped:\n\n" + conflicts.getReport().summary(20),
+					"Problems in " + ProgramModel.ENROLMENT_FILE, JOptionPane.WARNING_MESSAGE);
+	}
+	
 	//================================================================================
     // Button press methods
     //================================================================================
@@ -156,6 +270,9 @@ public class ProgramController
 	 */
 	public void editPressed()
 	{
+		// wait for any save or auto schedule to finish
+		if (busy)
+			return;
 		// enable or disable buttons, and update edit button
 		view.toggleButtons(!editEnabled);
 		
@@ -164,7 +281,7 @@ public class ProgramController
 		{
 			// important to clear the selected module before buttons are disabled
 			deselectModule();
-			saveToFile();
+			saveToFile(false);
 		}
 		
 		// toggle edit enabled
@@ -178,6 +295,27 @@ public class ProgramController
 	 */
 	public void slotPressed(Slot slot)
 	{
+		slotPressed(slot, false);
+	}
+	
+	/**
+	 * Called whenever a slot button is pressed. Updates model and view
+	 * appropriately. When pinning, the selected module is put in the slot
+	 * even if the slot is taken or has a module of the same subject and 
+	 * year at its time, and the modules in its way are moved elsewhere.
+	 * @param slot the slot that was pressed.
+	 * @param pin whether to pin the selected module in the slot.
+	 */
+	public void slotPressed(Slot slot, boolean pin)
+	{
+		if (busy)
+			return;
+		// pin the selected module if asked to and it fits in the room
+		if (pin && selectedModule != null && selectedModule.getSize() <= slot.getSize())
+		{
+			pinModule(selectedModule, slot);
+			return;
+		}
 		// schedule selected module if one is selected
 		if (selectedModule != null)
 			// if the selected module is successfully scheduled, return
@@ -198,6 +336,8 @@ public class ProgramController
 	 */
 	public void modulePressed(Module module)
 	{
+		if (busy)
+			return;
 		// if there is a module selected
 		if (selectedModule != null)
 			// if pressed module is the selected module, de-select it
@@ -215,33 +355,44 @@ public class ProgramController
 			selectModule(module);
 	}
 	
+	/**
+	 * Called when the auto schedule button is pressed. Starts scheduling 
+	 * every unscheduled module in the background, or cancels the auto 
+	 * schedule if it is already running.
+	 */
+	public void autoPressed()
+	{
+		if (autoScheduler != null)
+		{
+			autoScheduler.cancel();
+			return;
+		}
+		if (busy)
+			return;
+		deselectModule();
+		autoSchedule();
+	}
+	
 	//================================================================================
     // Scheduling helper methods
     //================================================================================
 	
 	/**
 	 * Adds a module to a given slot in the timetable, provided the slot is a valid
-	 * place to put the module, and updates views to reflect the change.
+	 * place to put the module. The view is updated by the model's change event.
 	 * @param module the module to schedule.
 	 * @param slot the slot in which to put it.
 	 * @return whether the module was scheduled.
 	 */
 	private boolean scheduleModule(Module module, Slot slot)
 	{
-		// check if slot is valid place to put module
-		if (model.moduleFitsInSlot(module, slot))
+		// place the module if the slot is a valid place to put it, checking
+		// and placing in one step in case the model is shared
+		if (model.tryPlace(module, slot))
 		{
-			// update model
-			model.addModuleToSlot(module, slot);
-			// and view
-			view.scheduleModule(
-					module, 
-					slot, 
-					model.lineForModule(module), 
-					selectedSlot
-				);
 			// clear selected module and return true since module 
 			// was successfully scheduled
+			cancelQuery();
 			selectedModule = null;
 			return true;
 		}
@@ -258,12 +409,54 @@ public class ProgramController
 	{
 		// save the slot in which the module is currently scheduled
 		selectedSlot = model.slotForModule(module);
-		// clear that slot in timetable if not null
-		if (selectedSlot != null)
-			model.addModuleToSlot(null, selectedSlot);
-		// update the view
-		view.selectModule(module, model.validSlotsForModule(module));
+		// highlight the module now, and its valid slots as they are found;
+		// the view is told first so it keeps the module's old slot as a 
+		// reminder when the module is taken out of the model. A module 
+		// which is picked up is no longer pinned
+		view.selectModule(module, selectedSlot);
+		model.removeModule(module);
+		repairer.unpin(module);
 		selectedModule = module;
+		findValidSlots(module);
+	}
+	
+	/**
+	 * Find the valid slots for a module in the background, a batch of rows
+	 * at a time, highlighting each batch as it is found. Any earlier search
+	 * is cancelled, and a search whose module has since been deselected
+	 * highlights nothing.
+	 * @param module the selected module.
+	 */
+	private void findValidSlots(final Module module)
+	{
+		cancelQuery();
+		final int rows = model.getSlots().length;
+		query = new SwingWorker<Void, Slot[]>() {
+			protected Void doInBackground() {
+				for (int i = 0; i < rows && !isCancelled(); i += QUERY_ROWS)
+					publish(model.validSlotsForModule(
+							module, i, Math.min(i + QUERY_ROWS, rows)));
+				return null;
+			}
+			protected void process(List<Slot[]> batches) {
+				// ignore batches arriving after the module was deselected
+				if (query != this || isCancelled())
+					return;
+				for (int i = 0; i < batches.size(); i++)
+					view.highlightSlots(batches.get(i));
+			}
+		};
+		executor.execute(query);
+	}
+	
+	/**
+	 * Cancel the search for valid slots, if one is running.
+	 */
+	private void cancelQuery()
+	{
+		if (query != null)
+			query.cancel(false);
+		query = null;
 	}
 	
 	/**
@@ -278,38 +471,185 @@ public class ProgramController
 		// if no module is selected, there is nothing to be done
 		if (module == null)
 			return; 
-		// if the selected module was previously scheduled
-		if (selectedSlot != null)
-			// reschedule it in its previous slot
-			scheduleModule(module, selectedSlot);
-		else
-			// otherwise, return the selected module button to its unscheduled style
+		// stop highlighting slots for it
+		cancelQuery();
+		// if the selected module was previously scheduled, reschedule it
+		// in its previous slot; otherwise, or if that slot has since been 
+		// taken, return the selected module row to its unscheduled style
+		if (selectedSlot == null || !scheduleModule(module, selectedSlot))
 			view.makeUnscheduled(module, model.lineForModule(module));
 
 		selectedModule = null;
 	}
 	
+	/**
+	 * Pin the selected module into a slot in the background, moving the 
+	 * fewest other modules needed to keep the timetable valid. The changes 
+	 * reach the view as a single batch of change events. The module's row is
+	 * marked as pinned, and the user is told which modules were moved out
+	 * of its way, and about any which could not be found a new slot.
+	 * @param module the selected module.
+	 * @param slot the slot to pin it in.
+	 */
+	private void pinModule(final Module module, final Slot slot)
+	{
+		busy = true;
+		cancelQuery();
+		selectedModule = null;
+		executor.execute(new SwingWorker<Boolean, Void>() {
+			protected Boolean doInBackground() {
+				return repairer.pin(module, slot);
+			}
+			protected void done() {
+				busy = false;
+				try {
+					get();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				// a module which was not placed goes back to being unscheduled
+				if (model.slotForModule(module) == null)
+					view.makeUnscheduled(module, model.lineForModule(module));
+				else if (repairer.isPinned(module))
+					view.makePinned(module);
+				List<Module> moved = repairer.getMoved();
+				List<Module> unplaced = repairer.getUnplaced();
+				if (moved.isEmpty() && unplaced.isEmpty())
+					return;
+				// say where each module moved out of the way went, if anywhere
+				String message = "";
+				if (!moved.isEmpty())
+				{
+					message += "These modules were moved out of the way:";
+					for (int i = 0; i < moved.size(); i++)
+						message += "\n" + model.lineForModule(moved.get(i));
+				}
+				if (unplaced.isEmpty())
+				{
+					showMessage(message, "Pinned " + module.getCode(), JOptionPane.INFORMATION_MESSAGE);
+					return;
+				}
+				if (!message.isEmpty())
+					message += "\n\n";
+				message += "These modules were moved out of the way and "
+						+ "could not be scheduled elsewhere:";
+				for (int i = 0; i < unplaced.size(); i++)
+					message += "\n" + unplaced.get(i).getCode();
+				showMessage(message, "Pinned " + module.getCode(), JOptionPane.WARNING_MESSAGE);
+			}
+		});
+	}
+	
+	/**
+	 * Run the auto scheduler in the background, showing its progress on the
+	 * auto schedule button. The modules it places reach the view as a single
+	 * batch of change events. Presses on the timetable are ignored meanwhile.
+	 */
+	private void autoSchedule()
+	{
+		busy = true;
+		final JButton button = view.getAutoButton();
+		button.setText("CANCEL");
+		// the scheduler is cancelled directly rather than through the task, so
+		// the task only finishes once the search has really stopped
+		final AutoScheduler scheduler = new AutoScheduler(model);
+		autoScheduler = scheduler;
+		final SwingWorker<Boolean, Void> task = new SwingWorker<Boolean, Void>() {
+			protected Boolean doInBackground() {
+				// search, reporting how far it has got
+				scheduler.setProgressListener(new AutoScheduler.ProgressListener() {
+					public void progress(int placed, int total) {
+						setProgress(total == 0 ? 100 : placed * 100 / total);
+					}
+				});
+				return scheduler.schedule();
+			}
+			protected void done() {
+				autoScheduler = null;
+				busy = false;
+				button.setText("AUTO SCHEDULE");
+				boolean scheduled = false;
+				try {
+					scheduled = get();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				// a cancelled search fails quietly, and a search shown to be 
+				// impossible says why
+				if (!scheduled && !scheduler.isCancelled())
+				{
+					String message = "Not every module could be scheduled.";
+					List<String> reasons = scheduler.getReasons();
+					for (int i = 0; i < reasons.size(); i++)
+						message += "\n" + reasons.get(i);
+					showMessage(message, "Auto Schedule Failed", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		};
+		// show the search's progress on the button
+		task.addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent e) {
+				if ("progress".equals(e.getPropertyName()) && autoScheduler == scheduler)
+					button.setText("CANCEL (" + e.getNewValue() + "%)");
+			}
+		});
+		executor.execute(task);
+	}
+	
 	//================================================================================
     // File saving
     //================================================================================
 	
 	/**
-	 * Save the changes to the output file, and show a message to the user.
+	 * Save the changes to the output file in the background, and show a 
+	 * message to the user once it is done.
+	 * @param exit whether to quit the program after saving.
 	 */
-	private void saveToFile()
+	private void saveToFile(final boolean exit)
 	{
 		// only save if necessary
 		if (!editEnabled) 
+		{
+			if (exit)
+				System.exit(0);
 			return;
-		model.saveToFile();
-		// create and display message to user
+		}
+		busy = true;
+		executor.execute(new SwingWorker<Boolean, Void>() {
+			protected Boolean doInBackground() {
+				return model.saveToFile();
+			}
+			protected void done() {
+				busy = false;
+				boolean saved = false;
+				try {
+					saved = get();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				// create and display message to user
+				if (saved)
+					showMessage("Changes saved to ModulesOut.txt.", 
+							"Changes Saved", JOptionPane.INFORMATION_MESSAGE);
+				else
+					showMessage("Changes could not be saved to ModulesOut.txt.", 
+							"Save Failed", JOptionPane.ERROR_MESSAGE);
+				if (exit)
+					System.exit(0);
+			}
+		});
+	}
+	
+	/**
+	 * Show a message to the user.
+	 * @param message the message.
+	 * @param title the title of the dialog.
+	 * @param type the type of message, as for {@link JOptionPane}.
+	 */
+	private void showMessage(String message, String title, int type)
+	{
 		UIManager.put("OptionPane.background", Color.WHITE);
 		UIManager.put("Panel.background", Color.WHITE);
-		JOptionPane.showMessageDialog(
-				null, 
-				"Changes saved to ModulesOut.txt.", 
-				"Changes Saved", 
-				JOptionPane.INFORMATION_MESSAGE
-			);
+		JOptionPane.showMessageDialog(null, message, title, type);
 	}
 }
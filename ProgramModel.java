@@ -1,18 +1,54 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Objects;
-import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The model for the program; stores the timetable, and contains methods
  * to retrieve information about the it, and to update it as required.
+ * <p>
+ * The model may be used by several threads at once. Each time (row) of the
+ * timetable has its own lock, which guards the slots, occupancy bits and
+ * subject year bits of that row, so changes at different times never
+ * contend. A change which touches two rows, such as moving a module from
+ * one time to another, takes both locks, lower row first. The rules are
+ * only checked per row, so {@link #tryPlace} and {@link #tryMove} check and
+ * place a module atomically.
+ * <p>
+ * Internally modules are known by their id, their row of the 
+ * {@link ModuleTable} read from the input file: the schedule holds the id
+ * of the module in each slot, and the reverse holds the slot index of each
+ * module, so neither needs an object per entry. A module from another
+ * table is rejected with an IllegalArgumentException.
+ * <p>
+ * Every change to the schedule is published as a {@link ScheduleEvent} to 
+ * the schedule listeners, so views can update just what changed. Changes
+ * made between beginBatch and endBatch are coalesced into at most one event
+ * per module, and delivered together when the batch ends.
+ * <p>
+ * If an enrolment file is given, two modules which share a student may not
+ * be at the same time either. Each row then also keeps a bitset of the ids
+ * of the modules at that time, and a module clashes at a time if its 
+ * neighbours in the {@link ConflictGraph} intersect that row's bitset.
  */
 public class ProgramModel {
 	
@@ -20,14 +56,14 @@ public class ProgramModel {
     // Properties
     //================================================================================
 	
-	/** Number of different class times. */
-	private final static int ROWS = 10;
+	/** Name of the file defining the times and rooms of the timetable. */
+	public final static String GRID_FILE = "Grid.txt";
 	
-	/** Number of different rooms. */
-	private final static int COLS = 8;
-
-	/** Array of class times. */
-	private final String[] times = new String[] {
+	/** Name of the enrolment file read by default in batch and server mode. */
+	public final static String ENROLMENT_FILE = "Enrolments.txt";
+	
+	/** Class times used when there is no grid file. */
+	private final static String[] DEFAULT_TIMES = new String[] {
 		"MonAM",
 		"MonPM",
 		"TueAM",
@@ -40,21 +76,170 @@ public class ProgramModel {
 		"FriPM"
 	};
 	
+	/** Room names used when there is no grid file. */
+	private final static String[] DEFAULT_ROOM_NAMES = 
+		new String[] {"A","B","C","D","E","F","G","H"};
+	
+	/** Room sizes used when there is no grid file. */
+	private final static int[] DEFAULT_ROOM_SIZES = 
+		new int[] {100,100,60,60,60,30,30,30};
+	
+	/** Number of different class times. */
+	private int rows;
+	
+	/** Number of different rooms. */
+	private int cols;
+
+	/** Array of class times. */
+	private String[] times = DEFAULT_TIMES;
+	
 	/** Array of room names. */
-	private final String[] roomNames = new String[] {"A","B","C","D","E","F","G","H"};
+	private String[] roomNames = DEFAULT_ROOM_NAMES;
 	
 	/** Array of room sizes. */
-	private final int[] roomSizes = new int[] {100,100,60,60,60,30,30,30};
+	private int[] roomSizes = DEFAULT_ROOM_SIZES;
+	
+	/** {@link HashMap} enabling looking up the index of a time by name. */
+	private HashMap<String, Integer> timeIndices = new HashMap<String, Integer>();
+	
+	/** {@link HashMap} enabling looking up the index of a room by name. */
+	private HashMap<String, Integer> roomIndices = new HashMap<String, Integer>();
 	
 	/** 2D array of slots in the timetable. */
 	private Slot[][] slots;
 	
-	/** {@link HashMap} enabling looking up the module in a given slot. */
-	private HashMap<Slot, Module> schedule = new HashMap<Slot, Module>();
+	/** The distinct room capacities, smallest first. */
+	private int[] capacities;
+	
+	/** The capacity class of each column (room), its index in capacities. */
+	private int[] capacityClasses;
+	
+	/** The name of each time as UTF-8, for writing the output file. */
+	private byte[][] timeBytes;
+	
+	/** The name of each room as UTF-8, for writing the output file. */
+	private byte[][] roomBytes;
+	
+	/** Entry of the schedule for an empty slot, and of slotOf for an unscheduled module. */
+	private final static int NONE = -1;
+	
+	/** 
+	 * Flat array holding the id of the module in each slot, or NONE, indexed
+	 * by the slot's index (row * cols + column).
+	 */
+	private int[] schedule;
+	
+	/** The number of slots which have a module in them. */
+	private AtomicInteger filled = new AtomicInteger();
+	
+	/** 
+	 * The index of the slot of each module, or NONE, indexed by module id;
+	 * the reverse of the schedule. A module's entry is only changed while 
+	 * holding the lock of the row it is leaving or entering. An unscheduled
+	 * module holds no row, so it is claimed by setting its entry from NONE
+	 * with compareAndSet before it is placed, and only one thread can do so.
+	 */
+	private AtomicIntegerArray slotOf;
+	
+	/** The lock of each row of the timetable. */
+	private ReentrantLock[] locks;
+	
+	/**
+	 * Listener which is told about changes to the schedule.
+	 */
+	public interface ScheduleListener
+	{
+		/**
+		 * Called on the thread which made the changes, once the model's locks
+		 * are released. Events for different modules may be coalesced out of
+		 * order, so a listener should apply every event's previous slot 
+		 * before any event's new slot.
+		 * @param events the changes, at most one per module.
+		 */
+		void scheduleChanged(List<ScheduleEvent> events);
+	}
+	
+	/** The listeners told about changes to the schedule. */
+	private CopyOnWriteArrayList<ScheduleListener> listeners = 
+			new CopyOnWriteArrayList<ScheduleListener>();
+	
+	/** The batch of changes being collected by each thread. */
+	private ThreadLocal<Batch> batch = new ThreadLocal<Batch>() {
+		protected Batch initialValue() {
+			return new Batch();
+		}
+	};
+	
+	/** Time taken by moduleFitsInSlot. */
+	private final static LatencyTimer FITS_TIMER = Metrics.timer("model.moduleFitsInSlot");
+	
+	/** Time taken by validSlotsForModule, per range of rows. */
+	private final static LatencyTimer VALID_TIMER = Metrics.timer("model.validSlotsForModule");
+	
+	/** Time taken to load the grid and module files. */
+	private final static LatencyTimer LOAD_TIMER = Metrics.timer("file.load");
+	
+	/** Bytes of module files read. */
+	private final static Counter LOAD_BYTES = Metrics.counter("file.loadBytes");
+	
+	/** Time taken to save the output file. */
+	private final static LatencyTimer SAVE_TIMER = Metrics.timer("file.save");
+	
+	/** Bytes of output files written. */
+	private final static Counter SAVE_BYTES = Metrics.counter("file.saveBytes");
+	
+	/** Number of saves which failed. */
+	private final static Counter SAVE_FAILURES = Metrics.counter("file.saveFailures");
+	
+	/** The slot description of an unscheduled module in the output file. */
+	private final static byte[] UNSCHEDULED_BYTES = "????? ?".getBytes(StandardCharsets.UTF_8);
+	
+	/** Result of placeIfValid when the module was placed. */
+	private final static int PLACED = 0;
 	
-	/** Array of all the module that need scheduling. */
+	/** Result of placeIfValid when the placement broke the rules. */
+	private final static int INVALID = 1;
+	
+	/** Result of placeIfValid when the module was not in the expected slot. */
+	private final static int MOVED_ELSEWHERE = 2;
+	
+	/** Array of all the module that need scheduling, indexed by id. */
 	private Module[] modules;
 	
+	/** The details of the modules, by id. */
+	private ModuleTable table;
+	
+	/** Description of how quickly the input file was parsed. */
+	private String parseThroughput;
+	
+	/** The error which stopped the input file being read, if any. */
+	private IOException loadError;
+	
+	/** The problems found in the input file. */
+	private ValidationReport report = new ValidationReport();
+	
+	/** 
+	 * For each time, a bitmap of the slots which have a module in them, 
+	 * with bit column set for each filled slot. Each row has its own words,
+	 * so that rows can be changed independently.
+	 */
+	private long[][] occupied;
+	
+	/** 
+	 * For each time, a bitset of the subject year ids of the modules 
+	 * scheduled at that time.
+	 */
+	private long[][] yearsAtTime;
+	
+	/** The modules which share students, or null if there is no enrolment file. */
+	private ConflictGraph conflicts;
+	
+	/** 
+	 * For each time, a bitset of the ids of the modules scheduled at that
+	 * time, kept only when there is a conflict graph.
+	 */
+	private long[][] modulesAtTime;
+	
 	//================================================================================
     // Get methods
     //================================================================================
@@ -68,6 +253,27 @@ public class ProgramModel {
 		return slots;
 	}
 	
+	/**
+	 * Get the distinct room capacities. Rooms of the same capacity are 
+	 * interchangeable as far as the rules are concerned, so the schedulers
+	 * work with capacity classes rather than rooms.
+	 * @return the capacities, smallest first.
+	 */
+	public int[] getCapacities()
+	{
+		return capacities;
+	}
+	
+	/**
+	 * Get the capacity class of each room.
+	 * @return for each column of the timetable, the index of its room's 
+	 * capacity in getCapacities.
+	 */
+	public int[] getCapacityClasses()
+	{
+		return capacityClasses;
+	}
+	
 	/**
 	 * Get method for the modules to be scheduled.
 	 * @return array of modules.
@@ -77,13 +283,101 @@ public class ProgramModel {
 		return modules;
 	}
 	
+	/**
+	 * Get the table holding the details of the modules, whose ids are their
+	 * positions in the array of modules, so that the modules can be scanned
+	 * column by column.
+	 * @return the module table.
+	 */
+	public ModuleTable getModuleTable()
+	{
+		return table;
+	}
+	
+	/**
+	 * Get the graph of the modules which share students, read from the
+	 * enrolment file.
+	 * @return the graph, or null if there is no enrolment file.
+	 */
+	public ConflictGraph getConflictGraph()
+	{
+		return conflicts;
+	}
+	
+	/**
+	 * Get the problems found in the input file: malformed lines, and 
+	 * pre-assigned slots which could not be used. The modules on those lines
+	 * are left unscheduled.
+	 * @return the report.
+	 */
+	public ValidationReport getValidationReport()
+	{
+		return report;
+	}
+	
+	/**
+	 * Look up a module by its code. If several modules share a code, the 
+	 * first in the input file is returned.
+	 * @param code the module code.
+	 * @return the module, or null if there is none with the code.
+	 */
+	public Module getModule(String code)
+	{
+		int id = table.find(code);
+		return id == ModuleTable.NONE ? null : modules[id];
+	}
+	
+	/**
+	 * Get a description of how quickly the input file was parsed.
+	 * @return the parse throughput.
+	 */
+	public String getParseThroughput()
+	{
+		return parseThroughput;
+	}
+	
+	/**
+	 * Get the error which stopped the input file being read.
+	 * @return the error, or null if the file was read.
+	 */
+	public IOException getLoadError()
+	{
+		return loadError;
+	}
+	
+	/**
+	 * Look up a slot by the names of its time and room.
+	 * @param time the name of the time.
+	 * @param room the name of the room.
+	 * @return the slot, or null if either name is unknown.
+	 */
+	public Slot getSlot(String time, String room)
+	{
+		Integer t = timeIndices.get(time);
+		Integer r = roomIndices.get(room);
+		if (t == null || r == null)
+			return null;
+		return slots[t][r];
+	}
+	
 	/**
 	 * Get the slots into which a module has been placed.
 	 * @return array of filled slots.
 	 */
 	public Slot[] getFilledSlots()
 	{
-		return schedule.keySet().toArray(new Slot[0]);
+		// hold every row, so the count matches the slots found
+		lockAll();
+		try {
+			Slot[] s = new Slot[filled.get()];
+			int n = 0;
+			for (int i = 0; i < schedule.length; i++)
+				if (schedule[i] != NONE)
+					s[n++] = slotAt(i);
+			return s;
+		} finally {
+			unlockAll();
+		}
 	}
 	
 	//================================================================================
@@ -91,12 +385,117 @@ public class ProgramModel {
     //================================================================================
 	
 	/**
-	 * Instantiate the program model by creating the slots and the modules.
+	 * Instantiate the program model by creating the slots from Grid.txt
+	 * and the modules from ModulesIn.txt. No enrolment file is read, so only
+	 * modules of the same subject and year clash.
 	 */
 	public ProgramModel()
 	{
+		this("ModulesIn.txt");
+	}
+	
+	/**
+	 * Instantiate the program model by creating the slots from Grid.txt
+	 * and the modules from a given input file, without an enrolment file.
+	 * @param fileName the name of the input file.
+	 */
+	public ProgramModel(String fileName)
+	{
+		this(GRID_FILE, fileName);
+	}
+	
+	/**
+	 * Instantiate the program model by creating the slots from a given grid
+	 * file and the modules from a given input file, without an enrolment
+	 * file. If the grid file does not exist, the standard 10 times and 8
+	 * rooms are used.
+	 * @param gridFileName the name of the grid file.
+	 * @param fileName the name of the input file.
+	 */
+	public ProgramModel(String gridFileName, String fileName)
+	{
+		this(gridFileName, fileName, null);
+	}
+	
+	/**
+	 * Instantiate the program model by creating the slots from a given grid
+	 * file, the modules from a given input file, and the modules which share
+	 * students from a given enrolment file. If the enrolment file is null or
+	 * does not exist, only modules of the same subject and year clash.
+	 * @param gridFileName the name of the grid file.
+	 * @param fileName the name of the input file.
+	 * @param enrolmentFileName the name of the enrolment file.
+	 */
+	public ProgramModel(String gridFileName, String fileName, String enrolmentFileName)
+	{
+		long start = Metrics.start();
+		loadGrid(gridFileName);
 		createSlots();
-		createModules();
+		createModules(fileName, enrolmentFileName);
+		LOAD_TIMER.stop(start);
+	}
+	
+	/**
+	 * Read the times and rooms from a grid file, made up of lines of the form
+	 * "TIME name" and "ROOM name capacity", in timetable order. Blank lines
+	 * and lines starting with # are ignored.
+	 * @param fileName the name of the grid file.
+	 */
+	private void loadGrid(String fileName)
+	{
+		if (new File(fileName).exists())
+		{
+			ArrayList<String> t = new ArrayList<String>();
+			ArrayList<String> r = new ArrayList<String>();
+			ArrayList<Integer> c = new ArrayList<Integer>();
+			try {
+				BufferedReader in = new BufferedReader(new FileReader(fileName));
+				try {
+					String line;
+					int n = 0;
+					while ((line = in.readLine()) != null)
+					{
+						n++;
+						line = line.trim();
+						if (line.isEmpty() || line.startsWith("#"))
+							continue;
+						String[] ln = line.split("\\s+");
+						if (ln[0].equals("TIME") && ln.length == 2)
+							t.add(ln[1]);
+						else if (ln[0].equals("ROOM") && ln.length == 3)
+						{
+							r.add(ln[1]);
+							c.add(Integer.parseInt(ln[2]));
+						}
+						else
+							throw new IOException(fileName + " line " + n + " is not TIME or ROOM");
+					}
+				} finally {
+					in.close();
+				}
+				if (t.isEmpty() || r.isEmpty())
+					throw new IOException(fileName + " has no times or no rooms");
+				
+				// use the grid from the file
+				times = t.toArray(new String[0]);
+				roomNames = r.toArray(new String[0]);
+				roomSizes = new int[c.size()];
+				for (int i = 0; i < roomSizes.length; i++)
+					roomSizes[i] = c.get(i);
+			} catch (IOException | NumberFormatException e) {
+				e.printStackTrace();
+				loadError = e instanceof IOException ? (IOException) e 
+						: new IOException(fileName + ": " + e.getMessage(), e);
+			}
+		}
+		rows = times.length;
+		cols = roomNames.length;
+		
+		// index the names, so slots can be looked up by name
+		for (int i = 0; i < rows; i++)
+			timeIndices.put(times[i], i);
+		for (int i = 0; i < cols; i++)
+			roomIndices.put(roomNames[i], i);
 	}
 	
 	/**
@@ -104,71 +503,198 @@ public class ProgramModel {
 	 */
 	private void createSlots()
 	{
-		// Create slots 2D array.
-		slots = new Slot[ROWS][COLS];
+		// Create slots 2D array, and the schedule with an entry for each slot.
+		slots = new Slot[rows][cols];
+		schedule = new int[rows * cols];
+		Arrays.fill(schedule, NONE);
+		locks = new ReentrantLock[rows];
+		for (int i = 0; i < rows; i++)
+			locks[i] = new ReentrantLock();
 				
 		// Populate slots array with new slot objects.
-		for (int i = 0; i < ROWS; i++)
-			for (int j = 0; j < COLS; j++)
-				slots[i][j] = new Slot(times[i], roomNames[j], roomSizes[j]);
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < cols; j++)
+				slots[i][j] = new Slot(times[i], roomNames[j], roomSizes[j], i, j, i * cols + j);
+		
+		// encode the names once, for writing the output file
+		timeBytes = new byte[rows][];
+		for (int i = 0; i < rows; i++)
+			timeBytes[i] = times[i].getBytes(StandardCharsets.UTF_8);
+		roomBytes = new byte[cols][];
+		for (int j = 0; j < cols; j++)
+			roomBytes[j] = roomNames[j].getBytes(StandardCharsets.UTF_8);
+		
+		// find the distinct capacities, and the class of each room
+		int[] sorted = roomSizes.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int j = 0; j < cols; j++)
+			if (n == 0 || sorted[j] != sorted[n - 1])
+				sorted[n++] = sorted[j];
+		capacities = Arrays.copyOf(sorted, n);
+		capacityClasses = new int[cols];
+		for (int j = 0; j < cols; j++)
+			capacityClasses[j] = Arrays.binarySearch(capacities, roomSizes[j]);
 	}
 	
 	/**
-	 * Create the array of modules from the ModulesIn.txt file.
+	 * Create the array of modules from the input file, placing the modules
+	 * whose lines give a slot if the slot can be used.
+	 * @param fileName the name of the input file.
+	 * @param enrolmentFileName the name of the enrolment file.
 	 */
-	private void createModules()
+	private void createModules(String fileName, String enrolmentFileName)
 	{
-		// get the lines of the file and create module array of same length
-		String[] lines = getFileLines();
-		modules = new Module[lines.length];
+		// parse the file into modules, with the time and room of each
+		ModuleFileParser parser = new ModuleFileParser(times, roomNames);
+		try {
+			parser.parse(fileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+			loadError = e;
+		}
+		table = parser.getTable();
+		modules = table.getModules();
+		parseThroughput = parser.getThroughput();
+		report = parser.getReport();
+		int[] lines = parser.getLines();
+		LOAD_BYTES.add(parser.getBytes());
 		
-		// loop over the lines
-		for(int i = 0; i < lines.length; i++)
+		// find modules whose code has been seen before; the table has 
+		// already given each module the id of its subject and year
+		boolean[] duplicate = new boolean[modules.length];
+		for (int i = 0; i < modules.length; i++)
 		{
-			// extract the fields from each and create a module object
-			String[] ln = lines[i].split(" ");
-			modules[i] = new Module(ln[0], Integer.parseInt(ln[4]), ln[1]);
-			
-			// schedule the module if time and room have been provided
-			if (!ln[2].equals("?????"))
-				addModuleToSlot(
-					modules[i], 
-					slots[
-						Arrays.asList(times).indexOf(ln[2])
-					][
-						Arrays.asList(roomNames).indexOf(ln[3])
-					]
-				);
+			int first = table.first(i);
+			if (first != i)
+			{
+				duplicate[i] = true;
+				report.add(lines[i], ValidationReport.Kind.DUPLICATE_CODE, 
+						table.getCode(i) + " is already on line " + lines[first]);
+			}
 		}
+		int[] none = new int[modules.length];
+		Arrays.fill(none, NONE);
+		slotOf = new AtomicIntegerArray(none);
+		
+		// now the module ids are known, read which of them share students
+		loadConflicts(enrolmentFileName);
+		
+		// now the number of subject years is known, create the occupancy index
+		createIndex();
+		
+		// schedule the modules for which time and room have been provided
+		placeModules(parser.getTimeIndices(), parser.getRoomIndices(), lines, duplicate);
+		report.sort();
 	}
 	
 	/**
-	 * Read the lines of the input file and return an array of strings,
-	 * one for each line.
-	 * @return array of strings representing the lines in the file.
+	 * Build the conflict graph from an enrolment file, if it exists.
+	 * @param fileName the name of the enrolment file.
 	 */
-	private String[] getFileLines() {
-		
-		// create a buffered reader for the input file
-		BufferedReader in = null;
-		try {
-			in = new BufferedReader(new FileReader("ModulesIn.txt"));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
-		
-		// loop through the lines of the file and add each to a list
-		String str;
-		List<String> list = new ArrayList<String>();
+	private void loadConflicts(String fileName)
+	{
+		if (fileName == null || !new File(fileName).exists())
+			return;
 		try {
-			while((str = in.readLine()) != null)
-				list.add(str);
+			conflicts = ConflictGraph.load(fileName, table);
 		} catch (IOException e) {
 			e.printStackTrace();
+			if (loadError == null)
+				loadError = e;
 		}
-		
-		// return the list as an array
-		return list.toArray(new String[0]);
+	}
+	
+	/**
+	 * Place the modules whose lines give a time and room, in one pass over
+	 * the file, checking each against the modules placed by earlier lines.
+	 * A module whose slot is unknown, taken, too small or has a module of the
+	 * same subject and year, or one sharing its students, at its time is 
+	 * reported and left unscheduled.
+	 * @param t the time index given for each module.
+	 * @param r the room index given for each module.
+	 * @param lines the line number of each module.
+	 * @param duplicate whether each module's code was on an earlier line.
+	 */
+	private void placeModules(int[] t, int[] r, int[] lines, boolean[] duplicate)
+	{
+		// the line which filled each slot, so a clash can name it
+		int[] lineInSlot = new int[rows * cols];
+		for (int i = 0; i < modules.length; i++)
+		{
+			Module m = modules[i];
+			int line = lines[i];
+			// question marks for both time and room mean not scheduled
+			if (t[i] == ModuleFileParser.UNSCHEDULED && r[i] == ModuleFileParser.UNSCHEDULED)
+				continue;
+			if (t[i] == ModuleFileParser.UNKNOWN)
+				report.add(line, ValidationReport.Kind.UNKNOWN_TIME, 
+						m.getCode() + " has a time which is not in the timetable");
+			if (r[i] == ModuleFileParser.UNKNOWN)
+				report.add(line, ValidationReport.Kind.UNKNOWN_ROOM, 
+						m.getCode() + " has a room which is not in the timetable");
+			if (t[i] == ModuleFileParser.UNKNOWN || r[i] == ModuleFileParser.UNKNOWN)
+				continue;
+			if (t[i] < 0 || r[i] < 0)
+			{
+				report.add(line, ValidationReport.Kind.INCOMPLETE_SLOT, m.getCode() 
+						+ " has a " + (t[i] < 0 ? "room" : "time") + " but no " 
+						+ (t[i] < 0 ? "time" : "room"));
+				continue;
+			}
+			if (duplicate[i])
+				continue;
+			
+			// check the slot against the modules placed so far
+			Slot slot = slots[t[i]][r[i]];
+			int index = slot.getIndex();
+			int y = m.getSubjectYearId();
+			if (schedule[index] != NONE)
+				report.add(line, ValidationReport.Kind.SLOT_TAKEN, m.getCode() + " is in " 
+						+ slot.getTime() + " " + slot.getName() + ", already taken by " 
+						+ table.getCode(schedule[index]) + " on line " + lineInSlot[index]);
+			else if (m.getSize() > slot.getSize())
+				report.add(line, ValidationReport.Kind.TOO_SMALL, m.getCode() + " has " 
+						+ m.getSize() + " students but room " + slot.getName() 
+						+ " has " + slot.getSize() + " seats");
+			else if ((yearsAtTime[t[i]][y >>> 6] & (1L << y)) != 0)
+			{
+				// find the module it clashes with, which is rare enough to search for
+				int other = t[i] * cols;
+				while (schedule[other] == NONE || table.getSubjectYearId(schedule[other]) != y)
+					other++;
+				report.add(line, ValidationReport.Kind.YEAR_CLASH, m.getCode() + " is at " 
+						+ slot.getTime() + " with " + table.getCode(schedule[other]) 
+						+ " of the same subject and year, on line " + lineInSlot[other]);
+			}
+			else if (conflicts != null && conflicts.intersects(i, modulesAtTime[t[i]]))
+			{
+				int other = conflicts.firstConflict(i, modulesAtTime[t[i]]);
+				int shared = conflicts.weight(i, other);
+				report.add(line, ValidationReport.Kind.STUDENT_CLASH, m.getCode() + " is at " 
+						+ slot.getTime() + " with " + table.getCode(other) + ", which shares " 
+						+ shared + (shared == 1 ? " student" : " students") + " with it, on line " 
+						+ lineInSlot[slotOf.get(other)]);
+			}
+			else
+			{
+				addModuleToSlot(m, slot);
+				lineInSlot[index] = line;
+			}
+		}
+	}
+	
+	/**
+	 * Create the empty bitsets recording which slots are filled, which
+	 * subject years are scheduled at each time and, if students' enrolments
+	 * are known, which modules.
+	 */
+	private void createIndex()
+	{
+		occupied = new long[rows][(cols + 63) / 64];
+		yearsAtTime = new long[rows][(table.getSubjectYearCount() + 63) / 64];
+		if (conflicts != null)
+			modulesAtTime = new long[rows][(modules.length + 63) / 64];
 	}
 	
 	//================================================================================
@@ -176,14 +702,459 @@ public class ProgramModel {
     //================================================================================
 	
 	/**
-	 * Add a module to a given slot in the schedule.
+	 * Lock two rows of the timetable, always taking the lower row first so 
+	 * that two threads can never each wait for the other.
+	 * @param a one row.
+	 * @param b the other row, which may be the same.
+	 */
+	private void lockRows(int a, int b)
+	{
+		locks[Math.min(a, b)].lock();
+		if (a != b)
+			locks[Math.max(a, b)].lock();
+	}
+	
+	/**
+	 * Unlock two rows locked by lockRows.
+	 * @param a one row.
+	 * @param b the other row, which may be the same.
+	 */
+	private void unlockRows(int a, int b)
+	{
+		if (a != b)
+			locks[Math.max(a, b)].unlock();
+		locks[Math.min(a, b)].unlock();
+	}
+	
+	/**
+	 * Lock every row of the timetable, in order, so it can be read as a whole.
+	 */
+	private void lockAll()
+	{
+		for (int i = 0; i < rows; i++)
+			locks[i].lock();
+	}
+	
+	/**
+	 * Unlock every row locked by lockAll.
+	 */
+	private void unlockAll()
+	{
+		for (int i = rows - 1; i >= 0; i--)
+			locks[i].unlock();
+	}
+	
+	/**
+	 * Get the slot with a given index.
+	 * @param index the slot index, or NONE.
+	 * @return the slot, or null for NONE.
+	 */
+	private Slot slotAt(int index)
+	{
+		return index == NONE ? null : slots[index / cols][index % cols];
+	}
+	
+	/**
+	 * Get the index of a slot.
+	 * @param slot the slot, or null.
+	 * @return the slot index, or NONE for null.
+	 */
+	private static int indexOf(Slot slot)
+	{
+		return slot == null ? NONE : slot.getIndex();
+	}
+
+	/**
+	 * Get the id of a module of the model, which is its index in the
+	 * schedule's arrays.
+	 * @param module the module.
+	 * @return the module id.
+	 * @throws IllegalArgumentException if the module is not one of the
+	 * model's modules.
+	 */
+	private int idOf(Module module)
+	{
+		if (!module.isIn(table))
+			throw new IllegalArgumentException("Module " + module.getCode()
+					+ " is not one of the model's modules");
+		return module.getId();
+	}
+
+	/**
+	 * Take the module in a slot, if any, out of the schedule and index. The
+	 * slot's row must be locked.
+	 * @param slot the slot to clear.
+	 * @return the id of the module which was in the slot, or NONE.
+	 */
+	private int clearSlot(Slot slot)
+	{
+		int t = slot.getRow();
+		int j = slot.getColumn();
+		int index = slot.getIndex();
+		int old = schedule[index];
+		if (old == NONE)
+			return NONE;
+		schedule[index] = NONE;
+		filled.decrementAndGet();
+		// a module being moved already has its new slot in the reverse
+		slotOf.compareAndSet(old, index, NONE);
+		occupied[t][j >>> 6] &= ~(1L << j);
+		if (modulesAtTime != null)
+			modulesAtTime[t][old >>> 6] &= ~(1L << old);
+		// only clear the subject year bit if no other module of that 
+		// subject and year is at this time
+		int y = table.getSubjectYearId(old);
+		if (!yearAtTime(y, t, NONE))
+			yearsAtTime[t][y >>> 6] &= ~(1L << y);
+		return old;
+	}
+	
+	/**
+	 * Put a module into an empty slot in the schedule and index. The slot's
+	 * row must be locked, and the module must not be in any other slot, 
+	 * though it may have been claimed for this slot already.
+	 * @param id the module id.
+	 * @param slot the slot.
+	 */
+	private void fillSlot(int id, Slot slot)
+	{
+		int t = slot.getRow();
+		int j = slot.getColumn();
+		schedule[slot.getIndex()] = id;
+		filled.incrementAndGet();
+		slotOf.set(id, slot.getIndex());
+		occupied[t][j >>> 6] |= 1L << j;
+		if (modulesAtTime != null)
+			modulesAtTime[t][id >>> 6] |= 1L << id;
+		int y = table.getSubjectYearId(id);
+		yearsAtTime[t][y >>> 6] |= 1L << y;
+	}
+	
+	/**
+	 * Check whether a module of a given subject year, other than a given 
+	 * module, is scheduled at a given time. The row must be locked.
+	 * @param y the subject year id.
+	 * @param t the row.
+	 * @param except the id of the module to ignore, or NONE.
+	 * @return true if there is such a module.
+	 */
+	private boolean yearAtTime(int y, int t, int except)
+	{
+		for (int i = t * cols; i < (t + 1) * cols; i++)
+			if (schedule[i] != NONE && schedule[i] != except 
+					&& table.getSubjectYearId(schedule[i]) == y)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Check whether a module shares students with a module scheduled at a
+	 * given time. The row must be locked.
+	 * @param id the module id.
+	 * @param t the row.
+	 * @return true if there is such a module.
+	 */
+	private boolean studentsAtTime(int id, int t)
+	{
+		return modulesAtTime != null && conflicts.intersects(id, modulesAtTime[t]);
+	}
+	
+	/**
+	 * Add a module to a given slot in the schedule, replacing any module
+	 * already there. A null module clears the slot. If the module was already
+	 * in another slot, that slot is cleared, so each module is in at most one
+	 * slot. The rules are not checked; see {@link #tryPlace}.
 	 * @param module the module to schedule.
 	 * @param slot the slot to put it in.
 	 */
 	public void addModuleToSlot(Module module, Slot slot)
 	{
-		// add module to slot in schedule
-		schedule.put(slot, module);
+		int t = slot.getRow();
+		if (module == null)
+		{
+			int old;
+			locks[t].lock();
+			try {
+				old = clearSlot(slot);
+			} finally {
+				locks[t].unlock();
+			}
+			if (old != NONE)
+				fire(new ScheduleEvent(modules[old], slot, null));
+			return;
+		}
+		
+		// lock the module's current row and the new row, trying again if 
+		// the module is moved by another thread before the locks are held
+		int id = idOf(module);
+		Slot previous;
+		int displaced;
+		while (true)
+		{
+			previous = slotAt(slotOf.get(id));
+			int p = previous == null ? t : previous.getRow();
+			lockRows(p, t);
+			try {
+				if (slotOf.get(id) != indexOf(previous))
+					continue;
+				if (previous == slot)
+					return;
+				if (previous == null && !slotOf.compareAndSet(id, NONE, slot.getIndex()))
+					continue;
+				// take whatever is in the new slot out of it, then move the 
+				// module, entering the new slot before leaving the old one so
+				// that it never appears unscheduled to other threads
+				displaced = clearSlot(slot);
+				fillSlot(id, slot);
+				if (previous != null)
+					clearSlot(previous);
+				break;
+			} finally {
+				unlockRows(p, t);
+			}
+		}
+		
+		// tell the listeners, now the locks are released
+		if (displaced != NONE)
+			fire(new ScheduleEvent(modules[displaced], slot, null));
+		fire(new ScheduleEvent(module, previous, slot));
+	}
+	
+	/**
+	 * Take a module out of whatever slot it is in, atomically, so that a 
+	 * module moved into the slot by another thread is never removed instead.
+	 * @param module the module to unschedule.
+	 * @return true if the module was in a slot.
+	 */
+	public boolean removeModule(Module module)
+	{
+		int id = idOf(module);
+		while (true)
+		{
+			Slot s = slotAt(slotOf.get(id));
+			if (s == null)
+				return false;
+			boolean removed;
+			locks[s.getRow()].lock();
+			try {
+				// try again if the module moved before the lock was held
+				removed = slotOf.get(id) == s.getIndex();
+				if (removed)
+					clearSlot(s);
+			} finally {
+				locks[s.getRow()].unlock();
+			}
+			if (removed)
+			{
+				fire(new ScheduleEvent(module, s, null));
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Take a module out of a slot, provided it is still in that slot; in the
+	 * manner of a compare-and-set. The check and the removal are done
+	 * atomically, under the slot's row lock, so a module moved by another
+	 * thread is left where it was moved to.
+	 * @param module the module to unschedule.
+	 * @param from the slot the module is expected to be in.
+	 * @return true if the module was in the slot, and has been removed.
+	 */
+	public boolean tryRemove(Module module, Slot from)
+	{
+		int id = idOf(module);
+		int t = from.getRow();
+		locks[t].lock();
+		try {
+			if (slotOf.get(id) != from.getIndex())
+				return false;
+			clearSlot(from);
+		} finally {
+			locks[t].unlock();
+		}
+		fire(new ScheduleEvent(module, from, null));
+		return true;
+	}
+
+	/**
+	 * Place a module into a slot, moving it from any slot it is already in,
+	 * provided the slot is empty and the placement keeps to the rules. The
+	 * check and the placement are done atomically.
+	 * @param module the module to place.
+	 * @param slot the slot to put it in.
+	 * @return true if the module is now in the slot, false if it could not
+	 * be placed there.
+	 */
+	public boolean tryPlace(Module module, Slot slot)
+	{
+		while (true)
+		{
+			Slot from = slotForModule(module);
+			int result = placeIfValid(module, from, slot);
+			if (result == PLACED && from != slot)
+				fire(new ScheduleEvent(module, from, slot));
+			if (result != MOVED_ELSEWHERE)
+				return result == PLACED;
+		}
+	}
+	
+	/**
+	 * Move a module from one slot to another, provided it is still in the 
+	 * first slot, the second slot is empty, and the placement keeps to the 
+	 * rules; in the manner of a compare-and-set. The check and the move are 
+	 * done atomically.
+	 * @param module the module to move.
+	 * @param from the slot the module is expected to be in, or null if it is
+	 * expected to be unscheduled.
+	 * @param to the slot to move it to.
+	 * @return true if the module was moved.
+	 */
+	public boolean tryMove(Module module, Slot from, Slot to)
+	{
+		if (placeIfValid(module, from, to) != PLACED)
+			return false;
+		if (from != to)
+			fire(new ScheduleEvent(module, from, to));
+		return true;
+	}
+	
+	/**
+	 * Move a module from an expected slot into another slot, if it is still
+	 * in the expected slot and the placement is valid.
+	 * @param module the module.
+	 * @param from the slot it is expected to be in, or null.
+	 * @param to the slot to put it in.
+	 * @return PLACED, INVALID or MOVED_ELSEWHERE.
+	 */
+	private int placeIfValid(Module module, Slot from, Slot to)
+	{
+		int t = to.getRow();
+		int p = from == null ? t : from.getRow();
+		int id = idOf(module);
+		lockRows(p, t);
+		try {
+			if (slotOf.get(id) != indexOf(from))
+				return MOVED_ELSEWHERE;
+			if (from == to)
+				return PLACED;
+			if (schedule[to.getIndex()] != NONE || table.getSize(id) > to.getSize())
+				return INVALID;
+			// the module itself does not clash with its own subject year
+			int y = table.getSubjectYearId(id);
+			if ((yearsAtTime[t][y >>> 6] & (1L << y)) != 0
+					&& (p != t || yearAtTime(y, t, id)))
+				return INVALID;
+			// a module never shares students with itself
+			if (studentsAtTime(id, t))
+				return INVALID;
+			if (from == null && !slotOf.compareAndSet(id, NONE, to.getIndex()))
+				return MOVED_ELSEWHERE;
+			// enter the new slot before leaving the old one
+			fillSlot(id, to);
+			if (from != null)
+				clearSlot(from);
+			return PLACED;
+		} finally {
+			unlockRows(p, t);
+		}
+	}
+	
+	/**
+	 * Add a listener to be told about changes to the schedule.
+	 * @param listener the listener.
+	 */
+	public void addScheduleListener(ScheduleListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Remove a listener added by addScheduleListener.
+	 * @param listener the listener.
+	 */
+	public void removeScheduleListener(ScheduleListener listener)
+	{
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Start collecting the changes made by this thread, rather than telling 
+	 * the listeners about each one, until the matching endBatch. Batches may
+	 * be nested.
+	 */
+	public void beginBatch()
+	{
+		batch.get().depth++;
+	}
+	
+	/**
+	 * End a batch begun by beginBatch. When the outermost batch ends, the 
+	 * listeners are told about the net change to each module, if any.
+	 */
+	public void endBatch()
+	{
+		Batch b = batch.get();
+		if (--b.depth > 0 || b.changes.isEmpty())
+			return;
+		ArrayList<ScheduleEvent> events = new ArrayList<ScheduleEvent>(b.changes.values());
+		b.changes.clear();
+		deliver(events);
+	}
+	
+	/**
+	 * Publish a change, or add it to this thread's batch if one is open.
+	 * @param event the change.
+	 */
+	private void fire(ScheduleEvent event)
+	{
+		if (listeners.isEmpty())
+			return;
+		Batch b = batch.get();
+		if (b.depth > 0)
+			b.add(event);
+		else
+			deliver(Collections.singletonList(event));
+	}
+	
+	/**
+	 * Tell every listener about some changes.
+	 * @param events the changes.
+	 */
+	private void deliver(List<ScheduleEvent> events)
+	{
+		events = Collections.unmodifiableList(events);
+		for (ScheduleListener listener : listeners)
+			listener.scheduleChanged(events);
+	}
+	
+	/**
+	 * The changes made by one thread during a batch, kept as the net change
+	 * to each module.
+	 */
+	private static class Batch
+	{
+		/** How many batches are open. */
+		int depth;
+		
+		/** The net change to each module changed during the batch. */
+		LinkedHashMap<Module, ScheduleEvent> changes = new LinkedHashMap<Module, ScheduleEvent>();
+		
+		/**
+		 * Merge a change into the batch, dropping the module's entry if it 
+		 * ends up back where it started.
+		 * @param event the change.
+		 */
+		void add(ScheduleEvent event)
+		{
+			Module m = event.getModule();
+			ScheduleEvent earlier = changes.get(m);
+			Slot from = earlier == null ? event.getFrom() : earlier.getFrom();
+			if (from == event.getTo())
+				changes.remove(m);
+			else
+				changes.put(m, new ScheduleEvent(m, from, event.getTo()));
+		}
 	}
 	
 	/**
@@ -194,51 +1165,95 @@ public class ProgramModel {
 	 */
 	public Slot[] validSlotsForModule(Module module)
 	{
+		return validSlotsForModule(module, 0, rows);
+	}
+	
+	/**
+	 * Obtain an array of the slots at a range of times into which a given 
+	 * module can be placed, so that long queries can be done in batches.
+	 * Each row is looked at under its lock, so the result is right for each
+	 * row at the moment it was looked at.
+	 * @param module the module to be placed.
+	 * @param fromRow the first row (time) to look at.
+	 * @param toRow the row after the last row to look at.
+	 * @return array of valid slots.
+	 */
+	public Slot[] validSlotsForModule(Module module, int fromRow, int toRow)
+	{
+		long start = Metrics.start();
 		// we will be returning an array of slots of indeterminate length, so 
 		// use array list
 		ArrayList<Slot> s = new ArrayList<Slot>();
 		
-		// for each slot
-		for (int i = 0; i < ROWS; i++)
-			for (int j = 0; j < COLS; j++)
-				// check if module fits, and if it does, add to our array list
-				if (moduleFitsInSlot(module, slots[i][j]))
-					s.add(slots[i][j]);
+		// for each time without a module of the same subject and year, or
+		// sharing its students
+		int id = idOf(module);
+		int y = module.getSubjectYearId();
+		for (int i = fromRow; i < toRow; i++)
+		{
+			locks[i].lock();
+			try {
+				if ((yearsAtTime[i][y >>> 6] & (1L << y)) == 0 
+						&& !studentsAtTime(id, i))
+					// add each free slot big enough for the module
+					for (int j = 0; j < cols; j++)
+						if ((occupied[i][j >>> 6] & (1L << j)) == 0 
+								&& module.getSize() <= roomSizes[j])
+							s.add(slots[i][j]);
+			} finally {
+				locks[i].unlock();
+			}
+		}
 		// convert array list to regular array on return
-		return s.toArray(new Slot[0]);
+		Slot[] valid = s.toArray(new Slot[0]);
+		VALID_TIMER.stop(start);
+		return valid;
 	}
 	
 	/**
 	 * Check whether a given module may be legally placed into a given
-	 * slot.
+	 * slot. Another thread may change the timetable straight after, so use 
+	 * {@link #tryPlace} to check and place in one step.
 	 * @param module the module to be placed.
 	 * @param slot the slot to test.
 	 * @return true if the module may be placed in the slot, false otherwise.
 	 */
 	public boolean moduleFitsInSlot(Module module, Slot slot)
 	{
-		// is a module already scheduled for the slot? If so return false
-		if (schedule.get(slot) != null)
-			return false;
+		long start = Metrics.start();
+		boolean fits = fits(module, slot);
+		FITS_TIMER.stop(start);
+		return fits;
+	}
+	
+	/**
+	 * Check whether a module may be placed into a slot, for moduleFitsInSlot.
+	 * @param module the module to be placed.
+	 * @param slot the slot to test.
+	 * @return true if the module may be placed in the slot, false otherwise.
+	 */
+	private boolean fits(Module module, Slot slot)
+	{
+		int id = idOf(module);
 		// does the slot have enough seats for the module? If not, return false
 		if (module.getSize() > slot.getSize())
 			return false;
-		// is there already a class for that year at this time? If so, return false:
-		// to check this condition, first get the row of the module in the slots array
-		int t = Arrays.asList(times).indexOf(slot.getTime());
-		// loop over all slots in that row (at that time)
-		for (int i = 0; i < COLS; i++)
-		{
-			// get the module in the slot
-			Module m = schedule.get(slots[t][i]);
-			// if there is a module scheduled, and it is the same subject and year
-			// return false
-			if (m != null)
-				if (m.getSubjectYear().equals(module.getSubjectYear()))
-					return false;
+		int t = slot.getRow();
+		int j = slot.getColumn();
+		int y = module.getSubjectYearId();
+		locks[t].lock();
+		try {
+			// is a module already scheduled for the slot? If so return false
+			if ((occupied[t][j >>> 6] & (1L << j)) != 0)
+				return false;
+			// is there already a class for that year at this time? If so, return false
+			if ((yearsAtTime[t][y >>> 6] & (1L << y)) != 0)
+				return false;
+			// does a student of the module have a class at this time? If so, return false
+			return !studentsAtTime(id, t);
+		} finally {
+			locks[t].unlock();
 		}
-		// if none of above, return true
-		return true;
 	}
 	
 	/**
@@ -249,16 +1264,32 @@ public class ProgramModel {
 	 */
 	public Slot slotForModule(Module module)
 	{
-		// loop over the modules which have been scheduled
-		for (Entry<Slot, Module> m : schedule.entrySet()) 
-		{
-			// if one is equal to module in question, return its key (slot)
-	        if (Objects.equals(module, m.getValue())) {
-	            return m.getKey();
-	        }
-	    }
-		// otherwise return null as module not scheduled
-	    return null;
+		// look up module in the reverse schedule
+		return slotAt(slotOf.get(idOf(module)));
+	}
+	
+	/**
+	 * Check whether a scheduled module's placement keeps to the rules of the
+	 * scenario: the room is big enough, and no other module of the same
+	 * subject and year, or sharing its students, is at the same time.
+	 * @param module the module to check.
+	 * @return false if the module is scheduled and breaks a rule.
+	 */
+	public boolean placementIsValid(Module module)
+	{
+		Slot s = slotForModule(module);
+		if (s == null)
+			return true;
+		if (module.getSize() > s.getSize())
+			return false;
+		// look at all slots at the same time as the module
+		locks[s.getRow()].lock();
+		try {
+			return !yearAtTime(module.getSubjectYearId(), s.getRow(), module.getId())
+					&& !studentsAtTime(module.getId(), s.getRow());
+		} finally {
+			locks[s.getRow()].unlock();
+		}
 	}
 	
 	/**
@@ -268,8 +1299,15 @@ public class ProgramModel {
 	 */
 	public Module moduleInSlot(Slot slot)
 	{
-		// look up slot in the schedule HashMap
-		return schedule.get(slot);
+		// read the slot's entry in the schedule array
+		int id;
+		locks[slot.getRow()].lock();
+		try {
+			id = schedule[slot.getIndex()];
+		} finally {
+			locks[slot.getRow()].unlock();
+		}
+		return id == NONE ? null : modules[id];
 	}
 	
 	/**
@@ -279,11 +1317,22 @@ public class ProgramModel {
 	 * @return the string description.
 	 */
 	public String lineForModule(Module module)
+	{
+		return lineForModule(module, slotForModule(module));
+	}
+	
+	/**
+	 * Get the string description of a module as it should appear in the 
+	 * module view, given the slot it is in, so that a view can describe a
+	 * change without asking the model.
+	 * @param module module for which to obtain description.
+	 * @param s the slot of the module, or null if it is not scheduled.
+	 * @return the string description.
+	 */
+	public static String lineForModule(Module module, Slot s)
 	{
 		// if module not scheduled, slot description ends in question marks
 		String slotDescription = "  -  ?????  ?";
-		// get the slot into which the module has been placed
-		Slot s = slotForModule(module);
 		// if the module has been scheduled, replace question marks with info
 		if (s != null)
 			slotDescription = "  -  " + s.getTime() + "  " + s.getName();
@@ -296,46 +1345,122 @@ public class ProgramModel {
     //================================================================================
 	
 	/**
-	 * Get the string description of a module as it should appear in the output
-	 * text file.
-	 * @param module the module for which to obtain the description.
-	 * @return the string description.
+	 * Write the description of a module as it should appear in the output
+	 * text file, copying the code and name straight from the module table
+	 * without building an intermediate string.
+	 * @param out the stream for the output file.
+	 * @param id the id of the module for which to write the description.
+	 * @param index the index of the slot of the module, or NONE.
+	 * @throws IOException if the write fails.
 	 */
-	private String outputLineForModule(Module module)
+	private void writeOutputLine(OutputStream out, int id, int index) throws IOException
 	{
-		// if module is not scheduled, slot description ends in question marks
-		String slotDescription = "????? ?";
-		// get the slot into which the module has been placed
-		Slot s = slotForModule(module);
-		// if the module has been scheduled, replace question marks with info
-		if (s != null)
-			slotDescription = s.getTime() + " " + s.getName();
-		// return result
-		return module.getCode() + " " + module.getName() + " " 
-			+ slotDescription + " " + module.getSize();
+		table.writeCode(id, out);
+		out.write(' ');
+		table.writeName(id, out);
+		out.write(' ');
+		// if module is not scheduled, slot description is question marks
+		if (index == NONE)
+			out.write(UNSCHEDULED_BYTES);
+		else
+		{
+			out.write(timeBytes[index / cols]);
+			out.write(' ');
+			out.write(roomBytes[index % cols]);
+		}
+		out.write(' ');
+		// write the size digit by digit, most significant first
+		int size = table.getSize(id);
+		int digits = 1;
+		while (size / digits >= 10)
+			digits *= 10;
+		for (; digits > 0; digits /= 10)
+			out.write('0' + size / digits % 10);
+		out.write('\n');
+	}
+	
+	/**
+	 * Write the module details to ModulesOut.txt.
+	 * @return true if the file was saved, false otherwise.
+	 */
+	public boolean saveToFile()
+	{
+		return saveToFile("ModulesOut.txt");
 	}
 	
 	/**
-	 * Write the module details to the output file.
+	 * Write the module details to a given output file. The details are 
+	 * streamed into a temporary file beside the output file, which is synced 
+	 * to disk and then renamed over it, so a crash part way through a save can
+	 * never leave a truncated file. The timetable is copied while every row 
+	 * is locked, so the file never mixes changes made during the save.
+	 * @param fileName the name of the output file.
+	 * @return true if the file was saved, false otherwise.
 	 */
-	public void saveToFile()
+	public boolean saveToFile(String fileName)
 	{
-		// the string that will hold all the modules' details
-		String s = ""; 
-		// loop through all modules and add their details
-		for(int i = 0; i < modules.length; i++) 
-			s += outputLineForModule(modules[i]) + "\n";
+		long start = Metrics.start();
+		boolean saved = save(fileName);
+		SAVE_TIMER.stop(start);
+		if (!saved)
+			SAVE_FAILURES.add(1);
+		return saved;
+	}
+	
+	/**
+	 * Write the module details to a given output file, for saveToFile.
+	 * @param fileName the name of the output file.
+	 * @return true if the file was saved, false otherwise.
+	 */
+	private boolean save(String fileName)
+	{
+		// copy the slot of each module in one consistent step
+		int[] placed = new int[modules.length];
+		lockAll();
+		try {
+			for (int i = 0; i < modules.length; i++)
+				placed[i] = slotOf.get(i);
+		} finally {
+			unlockAll();
+		}
 		
-		// make a Print Writer object
-		PrintWriter writer = null;
+		Path out = Paths.get(fileName).toAbsolutePath();
+		Path tmp = null;
 		try {
-			writer = new PrintWriter("ModulesOut.txt");
-		} catch (FileNotFoundException e) {
+			// write the modules line by line into a temporary file
+			tmp = Files.createTempFile(out.getParent(), out.getFileName() + ".", ".tmp");
+			FileOutputStream stream = new FileOutputStream(tmp.toFile());
+			try {
+				OutputStream buffered = new BufferedOutputStream(stream, 1 << 16);
+				for (int i = 0; i < modules.length; i++)
+					writeOutputLine(buffered, i, placed[i]);
+				// make sure the contents are on disk before the rename
+				buffered.flush();
+				stream.getFD().sync();
+			} finally {
+				stream.close();
+			}
+			
+			// replace the output file in one step
+			try {
+				Files.move(tmp, out, StandardCopyOption.ATOMIC_MOVE, 
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (Metrics.ENABLED)
+				SAVE_BYTES.add(Files.size(out));
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			// remove the partial file, leaving the old output untouched
+			if (tmp != null)
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			return false;
 		}
-		
-		// write module details to file and close print writer
-		writer.println(s);
-		writer.close();
 	}
 }
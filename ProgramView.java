@@ -1,8 +1,10 @@
 import javax.swing.*;
 import java.awt.*;
+import java.util.List;
 
 /**
- * The view of the program. Responsible for laying out the GUI.
+ * The view of the program. Responsible for laying out the GUI, and for
+ * showing changes to the schedule as the model publishes them.
  */
 @SuppressWarnings("serial")
 public class ProgramView extends JFrame
@@ -27,6 +29,18 @@ public class ProgramView extends JFrame
 	/** The edit button. */
 	private JButton editButton;
 	
+	/** The auto schedule button. */
+	private JButton autoButton;
+	
+	/** The module selected for moving, if any. */
+	private Module selected;
+	
+	/** 
+	 * The slot the selected module was in when it was selected, which keeps
+	 * showing the module as a reminder until it is placed somewhere else.
+	 */
+	private Slot reminder;
+	
 	/**
 	 * Get the timetable view.
 	 * @return the timetable view.
@@ -54,6 +68,15 @@ public class ProgramView extends JFrame
 		return editButton;
 	}
 	
+	/**
+	 * Get the auto schedule button.
+	 * @return the auto schedule button.
+	 */
+	public JButton getAutoButton()
+	{
+		return autoButton;
+	}
+	
 	//================================================================================
     // Constructor and setup methods
     //================================================================================
@@ -121,7 +144,8 @@ public class ProgramView extends JFrame
 	{	
 		addTimetableView(slots);
 		addModulesLabel();		
-		addScrollModuleView(modules);
+		addScrollModuleView(modules, slots);
+		addAutoButton();
 		addEditButton();
 	}
 	
@@ -132,7 +156,11 @@ public class ProgramView extends JFrame
 	private void addTimetableView(Slot[][] slots)
 	{
 		tv = new TimetableView(slots);
-		addComponent(tv, 0, 1, 1, 11);
+		// the timetable scrolls if it has too many slots to fit
+		JScrollPane scroll = new JScrollPane(tv);
+		scroll.setBorder(null);
+		scroll.getViewport().setBackground(BACKGROUND_COLOR);
+		addComponent(scroll, 0, 1, 1, 11);
 	}
 	
 	/**
@@ -150,11 +178,12 @@ public class ProgramView extends JFrame
 	/**
 	 * Adds the module view, within a scroll pane, to the GUI.
 	 * @param modules the array of modules with which to instantiate the module view.
+	 * @param slots the slots of the timetable, which size the module rows.
 	 */
-	private void addScrollModuleView(Module[] modules)
+	private void addScrollModuleView(Module[] modules, Slot[][] slots)
 	{
 		// create module view and scroll pane
-		mv = new ModuleView(modules);
+		mv = new ModuleView(modules, slots);
 		JScrollPane scroll = new JScrollPane();
 		// set scroll pane parameters, and put module view inside it
 		scroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
@@ -184,6 +213,24 @@ public class ProgramView extends JFrame
 		addComponent(editButton, 2, 10, 1, 1);
 	}
 	
+	/**
+	 * Add the auto schedule button to the GUI, above the edit button.
+	 */
+	private void addAutoButton()
+	{
+		// add auto schedule button, only enabled while editing
+		autoButton = new JButton("AUTO SCHEDULE");
+		// set style
+		autoButton.setBackground(new Color(0x1976D2));
+		autoButton.setForeground(Color.WHITE);
+		autoButton.setFont(new Font("Arial", Font.BOLD, 15));
+		autoButton.setBorder(null);
+		autoButton.setFocusPainted(false);
+		autoButton.setEnabled(false);
+		// add to GUI
+		addComponent(autoButton, 2, 9, 1, 1);
+	}
+	
 	/**
 	 * Add a component to the GUI.
 	 * @param comp the component to add.
@@ -217,58 +264,127 @@ public class ProgramView extends JFrame
 	{
 		mv.setButtonsEnabled(enabled);
 		tv.setButtonsEnabled(enabled);
+		autoButton.setEnabled(enabled);
 		editButton.setText(enabled ? "SAVE CHANGES" : "START EDITING");
 	}
 	
 	/**
-	 * Set the text of a given module button.
+	 * Set the text of a given module row.
 	 * @param module the module whose text needs set.
 	 * @param text the text.
 	 */
 	public void loadUnscheduledModule(Module module, String text)
 	{
-		mv.setTextForButton(module, text);
+		mv.setTextForModule(module, text);
 	}
 	
 	/**
-	 * Called when a module is scheduled. Clears the text of module's previous slot,
-	 * updates the new slot, and clears highlighted slots. In addition, updates
-	 * the module in the module view.
-	 * @param module the module that has been scheduled.
-	 * @param slot the slot in which it has been placed.
-	 * @param text the description of the module.
-	 * @param selectedSlot the module's previous slot, if any.
+	 * Show changes to the schedule: clear the slots modules have left and 
+	 * fill the slots they have entered, and update their module rows. Only
+	 * the affected slots and rows are repainted. May be called from any 
+	 * thread, as the changes are shown on the event thread.
+	 * @param events the changes.
 	 */
-	public void scheduleModule(Module module, Slot slot, String text, 
-													Slot selectedSlot)
+	public void scheduleChanged(final List<ScheduleEvent> events)
 	{
-		if (selectedSlot != null)
-			tv.setSlotText(selectedSlot, "");
-		// update text on slot button, clear the highlighted slots
-		// and make new slot scheduled color
-		tv.setSlotText(slot, module.getCode());
-		tv.setSlotScheduledColor(slot);
-		tv.clearHighlights();
-		// change module button background, and set text to module description
-		mv.makeScheduled(module);
-		mv.setTextForButton(module, text);
+		if (!SwingUtilities.isEventDispatchThread())
+		{
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					scheduleChanged(events);
+				}
+			});
+			return;
+		}
+		
+		// clear every slot left before filling any, as the events may be in
+		// any order; the selected module's old slot is left as a reminder,
+		// and cleared as the selection ends if the module has been placed, 
+		// before another module can be shown in it
+		Slot placed = null;
+		for (int i = 0; i < events.size(); i++)
+		{
+			ScheduleEvent e = events.get(i);
+			if (e.getFrom() != null && e.getModule() != selected)
+				tv.clearSlot(e.getFrom());
+			if (e.getModule() == selected && e.getTo() != null)
+				placed = e.getTo();
+		}
+		if (placed != null)
+			endSelection(placed);
+		for (int i = 0; i < events.size(); i++)
+		{
+			ScheduleEvent e = events.get(i);
+			Module module = e.getModule();
+			Slot slot = e.getTo();
+			if (slot != null)
+			{
+				// update text on slot, and make it the scheduled color
+				tv.setSlotText(slot, module.getCode());
+				tv.setSlotScheduledColor(slot);
+				// change module row background, and set text to module description
+				mv.makeScheduled(module);
+				mv.setTextForModule(module, ProgramModel.lineForModule(module, slot));
+			}
+			else if (module != selected)
+			{
+				mv.makeUnscheduled(module);
+				mv.setTextForModule(module, ProgramModel.lineForModule(module, null));
+			}
+		}
 	}
 	
 	/**
-	 * Highlight a given module and its valid slots.
+	 * Highlight a given module, whose valid slots will be highlighted as
+	 * they are found.
 	 * @param module the module.
-	 * @param valid the slots.
+	 * @param previous the slot the module is in, or null.
 	 */
-	public void selectModule(Module module, Slot[] valid) 
+	public void selectModule(Module module, Slot previous) 
 	{
-		// highlight the module and its valid slots, and store module.
-		// note that text is not cleared from selected slot button, so
+		// highlight the module and store it. note that text is not cleared 
+		// from its previous slot when it is taken out of the model, so
 		// that user is reminded which module they are moving, and where
 		// it was previously scheduled
 		mv.highlightModule(module);
+		selected = module;
+		reminder = previous;
+	}
+	
+	/**
+	 * Finish moving the selected module, clearing the reminder in its old
+	 * slot unless it is now there again, and the highlighted slots.
+	 * @param slot the slot the module is now in, or null.
+	 */
+	private void endSelection(Slot slot)
+	{
+		if (reminder != null && reminder != slot)
+			tv.clearSlot(reminder);
+		tv.clearHighlights();
+		selected = null;
+		reminder = null;
+	}
+	
+	/**
+	 * Highlight some more slots into which the selected module may be placed,
+	 * as they are found.
+	 * @param valid the slots.
+	 */
+	public void highlightSlots(Slot[] valid)
+	{
 		tv.highlightSlots(valid);
 	}
 	
+	/**
+	 * Mark the row of a module which has been pinned into its slot. The
+	 * mark goes when the module is next moved, which unpins it.
+	 * @param module the pinned module.
+	 */
+	public void makePinned(Module module)
+	{
+		mv.markPinned(module);
+	}
+
 	/**
 	 * Set the style of a given module to be unscheduled, and set its text.
 	 * Also clear highlighted slots.
@@ -278,7 +394,7 @@ public class ProgramView extends JFrame
 	public void makeUnscheduled(Module module, String text)
 	{
 		mv.makeUnscheduled(module);
-		mv.setTextForButton(module, text);
-		tv.clearHighlights();
+		mv.setTextForModule(module, text);
+		endSelection(null);
 	}
 }
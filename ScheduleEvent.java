@@ -0,0 +1,92 @@
+/**
+ * A change to the schedule of a single module, published by the
+ * {@link ProgramModel} to its schedule listeners. A module which was placed
+ * has no previous slot, a module which was removed has no new slot, and a
+ * module which was moved has both.
+ */
+public class ScheduleEvent {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The kinds of change. */
+	public enum Type
+	{
+		/** An unscheduled module was placed into a slot. */
+		PLACED,
+		/** A module was taken out of its slot. */
+		REMOVED,
+		/** A module was moved from one slot to another. */
+		MOVED
+	}
+
+	/** The module which changed. */
+	private Module module;
+
+	/** The slot the module was in, or null if it was unscheduled. */
+	private Slot from;
+
+	/** The slot the module is now in, or null if it is now unscheduled. */
+	private Slot to;
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate an event for a module which moved between two slots.
+	 * @param module the module.
+	 * @param from the slot it was in, or null.
+	 * @param to the slot it is now in, or null.
+	 */
+	ScheduleEvent(Module module, Slot from, Slot to)
+	{
+		this.module = module;
+		this.from = from;
+		this.to = to;
+	}
+
+	//================================================================================
+    // Get methods
+    //================================================================================
+
+	/**
+	 * Get the kind of change, worked out from which of the slots is null,
+	 * so a listener need not work it out itself.
+	 * @return PLACED, REMOVED or MOVED.
+	 */
+	public Type getType()
+	{
+		if (from == null)
+			return Type.PLACED;
+		return to == null ? Type.REMOVED : Type.MOVED;
+	}
+
+	/**
+	 * Get the module which changed.
+	 * @return the module.
+	 */
+	public Module getModule()
+	{
+		return module;
+	}
+
+	/**
+	 * Get the slot the module was in.
+	 * @return the slot, or null if the module was unscheduled.
+	 */
+	public Slot getFrom()
+	{
+		return from;
+	}
+
+	/**
+	 * Get the slot the module is now in.
+	 * @return the slot, or null if the module is now unscheduled.
+	 */
+	public Slot getTo()
+	{
+		return to;
+	}
+}
@@ -0,0 +1,604 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Time-boxed simulated annealing optimiser which improves the quality of a
+ * timetable that already keeps to the rules. Modules are moved to empty slots
+ * or swapped with each other, only ever into slots where they fit, and each
+ * move is scored by how it changes the soft costs it touches rather than by
+ * re-scoring the whole timetable. The soft costs are:
+ * <ul>
+ * <li>seats left empty, i.e. room capacity less module size;</li>
+ * <li>modules of the same subject and year on the same day;</li>
+ * <li>modules of the same subject and year clustered in afternoons.</li>
+ * </ul>
+ * Unscheduled modules are left unscheduled.
+ * <p>
+ * The search works on its own copy of the schedule, read from the model
+ * when it starts, so other threads may go on using the model meanwhile.
+ * Only the net change is made in the model at the end, each module being
+ * checked and placed atomically. A module whose new slot has been taken in
+ * the meantime goes back to its old slot, or failing that to any slot it
+ * is valid in, so a scheduled module is only ever left unscheduled if no
+ * slot is left for it, and then it is reported by getUnplaced.
+ */
+public class ScheduleOptimiser {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** Cost of each empty seat. */
+	public static final double SEAT_WEIGHT = 1;
+
+	/** Cost of each pair of modules of one subject and year on the same day. */
+	public static final double SAME_DAY_WEIGHT = 20;
+
+	/** Cost of each pair of modules of one subject and year in afternoons. */
+	public static final double AFTERNOON_WEIGHT = 10;
+
+	/** Number of iterations between checks of the clock. */
+	private static final int CHECK_EVERY = 1024;
+
+	/** Interval between samples of the objective, in milliseconds. */
+	private static final long SAMPLE_MILLIS = 50;
+
+	/** Entry of the copy of the schedule for an empty slot or unscheduled module. */
+	private static final int NONE = -1;
+
+	/** The model being optimised. */
+	private ProgramModel model;
+
+	/** The details of the modules. */
+	private ModuleTable table;
+
+	/** The modules which share students, or null if there are none. */
+	private ConflictGraph conflicts;
+
+	/** Number of rooms. */
+	private int cols;
+
+	/** Number of subject years. */
+	private int years;
+
+	/** Copy of the schedule: the module in each slot, or NONE, by slot index. */
+	private int[] slotModule;
+
+	/** Copy of the reverse: the slot index of each module, or NONE, by id. */
+	private int[] moduleSlot;
+
+	/** Number of modules of each subject year at each time, at time * years + year. */
+	private int[] yearCount;
+
+	/** Copy of the bitset of the ids of the modules at each time, kept if there are conflicts. */
+	private long[][] atTime;
+
+	/** All slots, row by row, so slot i has index i. */
+	private Slot[] slots;
+
+	/** The day of each row of the timetable. */
+	private int[] dayOfRow;
+
+	/** Whether each row of the timetable is an afternoon. */
+	private boolean[] afternoon;
+
+	/** Number of days in the timetable. */
+	private int days;
+
+	/** Modules which the optimiser may not move. */
+	private HashSet<Module> fixed = new HashSet<Module>();
+
+	/** Number of modules of each subject year on each day, at subjectYear * days + day. */
+	private int[] sameDay;
+
+	/** Number of modules of each subject year in afternoons. */
+	private int[] afternoons;
+
+	/** The objective of the current timetable. */
+	private double current;
+
+	/** The change in objective of the last move tried, or NaN if it was not possible. */
+	private double lastDelta;
+
+	/** Random number generator for choosing moves. */
+	private Random random = new Random(1);
+
+	/** Samples of (milliseconds, current objective, best objective) from the last run. */
+	private ArrayList<double[]> trace = new ArrayList<double[]>();
+
+	/** The modules the last run took out of their slots and could not place again. */
+	private ArrayList<Module> unplaced = new ArrayList<Module>();
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate an optimiser for a given model.
+	 * @param model the model to optimise.
+	 */
+	public ScheduleOptimiser(ProgramModel model)
+	{
+		this.model = model;
+		this.table = model.getModuleTable();
+		Slot[][] grid = model.getSlots();
+		cols = grid[0].length;
+		slots = new Slot[grid.length * cols];
+		for (int i = 0; i < grid.length; i++)
+			for (int j = 0; j < grid[i].length; j++)
+				slots[grid[i][j].getIndex()] = grid[i][j];
+
+		// work out the day of each time, and whether it is an afternoon,
+		// from time names such as MonAM and MonPM
+		HashMap<String, Integer> dayIds = new HashMap<String, Integer>();
+		dayOfRow = new int[grid.length];
+		afternoon = new boolean[grid.length];
+		for (int i = 0; i < grid.length; i++)
+		{
+			String time = grid[i][0].getTime();
+			String day = time;
+			if (time.endsWith("AM") || time.endsWith("PM"))
+				day = time.substring(0, time.length() - 2);
+			if (!dayIds.containsKey(day))
+				dayIds.put(day, dayIds.size());
+			dayOfRow[i] = dayIds.get(day);
+			afternoon[i] = time.endsWith("PM");
+		}
+		days = dayIds.size();
+	}
+
+	//================================================================================
+    // Get and set methods
+    //================================================================================
+
+	/**
+	 * Prevent a module from being moved by the optimiser.
+	 * @param module the module to keep where it is.
+	 */
+	public void fix(Module module)
+	{
+		fixed.add(module);
+	}
+
+	/**
+	 * Set the seed of the random number generator.
+	 * @param seed the seed.
+	 */
+	public void setSeed(long seed)
+	{
+		random = new Random(seed);
+	}
+
+	/**
+	 * Get the samples of the objective taken during the last run, each being
+	 * the milliseconds since the start, the current objective and the best
+	 * objective so far.
+	 * @return list of samples, in time order.
+	 */
+	public ArrayList<double[]> getTrace()
+	{
+		return trace;
+	}
+
+	/**
+	 * Get the modules which the last run took out of their slots and could
+	 * not place anywhere, as other threads had taken every slot they fit.
+	 * @return the modules, now unscheduled.
+	 */
+	public List<Module> getUnplaced()
+	{
+		return unplaced;
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Work out the objective of the model's timetable from scratch.
+	 * @return the total soft cost.
+	 */
+	public double objective()
+	{
+		snapshot();
+		return cost();
+	}
+
+	/**
+	 * Work out the objective of the copy of the timetable from scratch.
+	 * @return the total soft cost.
+	 */
+	private double cost()
+	{
+		countModules();
+		double cost = 0;
+		for (int i = 0; i < moduleSlot.length; i++)
+			if (moduleSlot[i] != NONE)
+				cost += SEAT_WEIGHT * (slots[moduleSlot[i]].getSize() - table.getSize(i));
+		for (int i = 0; i < sameDay.length; i++)
+			cost += SAME_DAY_WEIGHT * sameDay[i] * (sameDay[i] - 1) / 2;
+		for (int i = 0; i < afternoons.length; i++)
+			cost += AFTERNOON_WEIGHT * afternoons[i] * (afternoons[i] - 1) / 2;
+		return cost;
+	}
+
+	/**
+	 * Improve the timetable for a given length of time, leaving the model
+	 * holding the best timetable found. The model's listeners are told 
+	 * about the net change once, at the end, not about every move tried.
+	 * A module which other threads leave no slot for is given by
+	 * getUnplaced.
+	 * @param millis how long to search for, in milliseconds.
+	 * @return the objective of the timetable left in the model.
+	 */
+	public double optimise(long millis)
+	{
+		snapshot();
+		int[] before = moduleSlot.clone();
+		double best = anneal(millis);
+		if (apply(before))
+			return best;
+		// some moves could not be made, so score what the model holds
+		return objective();
+	}
+
+	/**
+	 * Run the simulated annealing search for optimise, on the copy of the
+	 * schedule, leaving the copy holding the best timetable found.
+	 * @param millis how long to search for, in milliseconds.
+	 * @return the objective of the best timetable.
+	 */
+	private double anneal(long millis)
+	{
+		trace.clear();
+		current = cost();
+
+		// the modules which may be moved
+		int[] movable = new int[moduleSlot.length];
+		int count = 0;
+		Module[] modules = model.getModules();
+		for (int i = 0; i < moduleSlot.length; i++)
+			if (moduleSlot[i] != NONE && !fixed.contains(modules[i]))
+				movable[count++] = i;
+		movable = Arrays.copyOf(movable, count);
+		if (movable.length == 0)
+			return current;
+
+		// start hot enough to accept a typical worsening move most of the time
+		double startTemperature = Math.max(1, typicalDelta(movable));
+		double endTemperature = 0.01;
+
+		// remember the best timetable, as the slot index of each movable module
+		int[] best = new int[movable.length];
+		for (int i = 0; i < movable.length; i++)
+			best[i] = moduleSlot[movable[i]];
+		double bestCost = current;
+
+		long start = System.nanoTime();
+		long end = start + millis * 1000000L;
+		long nextSample = 0;
+		double temperature = startTemperature;
+		for (long iteration = 0; ; iteration++)
+		{
+			// check the clock, cool down and sample the objective now and then
+			if (iteration % CHECK_EVERY == 0)
+			{
+				long now = System.nanoTime();
+				if (now >= end)
+					break;
+				double fraction = (now - start) / (double) (end - start);
+				temperature = startTemperature
+						* Math.pow(endTemperature / startTemperature, fraction);
+				long elapsed = (now - start) / 1000000L;
+				if (elapsed >= nextSample)
+				{
+					trace.add(new double[] {elapsed, current, bestCost});
+					nextSample = elapsed + SAMPLE_MILLIS;
+				}
+			}
+
+			// try a random move, accepting it if it is an improvement, or
+			// with a probability that falls as the search cools
+			if (!tryMove(movable[random.nextInt(movable.length)],
+					random.nextInt(slots.length), temperature))
+				continue;
+			current += lastDelta;
+			if (current < bestCost - 1e-9)
+			{
+				bestCost = current;
+				for (int i = 0; i < movable.length; i++)
+					best[i] = moduleSlot[movable[i]];
+			}
+		}
+		trace.add(new double[] {(System.nanoTime() - start) / 1000000L, current, bestCost});
+
+		// put the best timetable back into the copy
+		for (int i = 0; i < movable.length; i++)
+			take(movable[i]);
+		for (int i = 0; i < movable.length; i++)
+			put(movable[i], best[i]);
+		current = bestCost;
+		return bestCost;
+	}
+
+	/**
+	 * Make the net change between the model's timetable and the copy in the
+	 * model, as one batch of changes. The modules which move are taken out
+	 * of their old slots first, so that they can swap, then each is placed 
+	 * in its new slot if it is still free and valid, or else back in its 
+	 * old one, or else in any slot it is valid in. A module which cannot be
+	 * placed at all is added to the unplaced modules.
+	 * @param before the slot index of each module when the copy was made.
+	 * @return false if some module did not reach its new slot.
+	 */
+	private boolean apply(int[] before)
+	{
+		boolean complete = true;
+		unplaced.clear();
+		model.beginBatch();
+		try {
+			// take out the modules which move, if nothing has moved them
+			boolean[] removed = new boolean[before.length];
+			for (int i = 0; i < before.length; i++)
+				if (moduleSlot[i] != before[i])
+				{
+					Module module = table.getModule(i);
+					removed[i] = model.tryRemove(module, slots[before[i]]);
+					if (!removed[i])
+						complete = false;
+				}
+			// put each into its new slot, or back if that has been taken, or
+			// anywhere else it is valid if both have
+			for (int i = 0; i < before.length; i++)
+			{
+				Module module = table.getModule(i);
+				if (!removed[i] || model.tryMove(module, null, slots[moduleSlot[i]]))
+					continue;
+				complete = false;
+				if (model.tryMove(module, null, slots[before[i]]))
+					continue;
+				boolean placed = false;
+				Slot[] valid = model.validSlotsForModule(module);
+				for (int k = 0; k < valid.length && !placed; k++)
+					placed = model.tryMove(module, null, valid[k]);
+				if (!placed)
+					unplaced.add(module);
+			}
+		} finally {
+			model.endBatch();
+		}
+		return complete;
+	}
+
+	/**
+	 * Estimate the typical size of a worsening move, by trying some moves
+	 * and undoing them all.
+	 * @param movable the ids of the modules which may be moved.
+	 * @return the mean increase in cost of the worsening moves tried.
+	 */
+	private double typicalDelta(int[] movable)
+	{
+		double total = 0;
+		int n = 0;
+		for (int i = 0; i < 200; i++)
+		{
+			// a temperature of zero rejects every worsening move, but the
+			// size of the move is still recorded
+			if (tryMove(movable[random.nextInt(movable.length)],
+					random.nextInt(slots.length), 0))
+				// improving moves are kept, so keep the objective in step
+				current += lastDelta;
+			else if (lastDelta > 0)
+			{
+				total += lastDelta;
+				n++;
+			}
+		}
+		return n == 0 ? 1 : total / n;
+	}
+
+	/**
+	 * Try moving a module into a slot of the copy, or swapping it with the 
+	 * module already in the slot, keeping the change if the annealing rule
+	 * accepts it.
+	 * @param module the id of the module to move.
+	 * @param target the index of the slot to move it to.
+	 * @param temperature the current temperature.
+	 * @return true if the move was kept. Either way, the change in objective
+	 * it makes is left in lastDelta, which is NaN if the move was not possible.
+	 */
+	private boolean tryMove(int module, int target, double temperature)
+	{
+		lastDelta = Double.NaN;
+		int from = moduleSlot[module];
+		int other = slotModule[target];
+		if (from == target || (other != NONE && fixed.contains(table.getModule(other))))
+			return false;
+
+		// take the modules out, updating the counts as we go
+		double delta = leave(module, from);
+		take(module);
+		if (other != NONE)
+		{
+			delta += leave(other, target);
+			take(other);
+		}
+
+		// put them back swapped, if they both fit
+		boolean valid = fits(module, target);
+		if (valid)
+		{
+			put(module, target);
+			delta += enter(module, target);
+			if (other != NONE)
+			{
+				valid = fits(other, from);
+				if (valid)
+				{
+					put(other, from);
+					delta += enter(other, from);
+				}
+				else
+				{
+					delta += leave(module, target);
+					take(module);
+				}
+			}
+		}
+
+		// keep the move if it is accepted
+		if (valid)
+			lastDelta = delta;
+		if (valid && (delta <= 0 || (temperature > 0
+				&& random.nextDouble() < Math.exp(-delta / temperature))))
+			return true;
+
+		// otherwise undo it, putting each module back where it was
+		if (valid)
+		{
+			leave(module, target);
+			take(module);
+			if (other != NONE)
+			{
+				leave(other, from);
+				take(other);
+			}
+		}
+		put(module, from);
+		enter(module, from);
+		if (other != NONE)
+		{
+			put(other, target);
+			enter(other, target);
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the schedule from the model.
+	 */
+	private void snapshot()
+	{
+		conflicts = model.getConflictGraph();
+		years = table.getSubjectYearCount();
+		int n = table.size();
+		slotModule = new int[slots.length];
+		moduleSlot = new int[n];
+		yearCount = new int[dayOfRow.length * years];
+		atTime = conflicts == null ? null : new long[dayOfRow.length][(n + 63) / 64];
+		Arrays.fill(slotModule, NONE);
+		Arrays.fill(moduleSlot, NONE);
+		for (int i = 0; i < slots.length; i++)
+		{
+			Module module = model.moduleInSlot(slots[i]);
+			if (module != null)
+				put(module.getId(), i);
+		}
+	}
+
+	/**
+	 * Check whether a module may go into a slot of the copy: the slot is 
+	 * empty and big enough, and no module of the same subject and year, or
+	 * sharing its students, is at the time.
+	 * @param m the id of the module.
+	 * @param s the slot index.
+	 * @return true if it fits.
+	 */
+	private boolean fits(int m, int s)
+	{
+		int t = s / cols;
+		return slotModule[s] == NONE && table.getSize(m) <= slots[s].getSize()
+				&& yearCount[t * years + table.getSubjectYearId(m)] == 0
+				&& (atTime == null || !conflicts.intersects(m, atTime[t]));
+	}
+
+	/**
+	 * Put a module into an empty slot of the copy.
+	 * @param m the id of the module.
+	 * @param s the slot index.
+	 */
+	private void put(int m, int s)
+	{
+		int t = s / cols;
+		slotModule[s] = m;
+		moduleSlot[m] = s;
+		yearCount[t * years + table.getSubjectYearId(m)]++;
+		if (atTime != null)
+			atTime[t][m >>> 6] |= 1L << m;
+	}
+
+	/**
+	 * Take a module out of its slot in the copy.
+	 * @param m the id of the module.
+	 */
+	private void take(int m)
+	{
+		int s = moduleSlot[m];
+		int t = s / cols;
+		slotModule[s] = NONE;
+		moduleSlot[m] = NONE;
+		yearCount[t * years + table.getSubjectYearId(m)]--;
+		if (atTime != null)
+			atTime[t][m >>> 6] &= ~(1L << m);
+	}
+
+	/**
+	 * Count the modules of each subject year on each day and in afternoons,
+	 * in the copy.
+	 */
+	private void countModules()
+	{
+		sameDay = new int[years * days];
+		afternoons = new int[years];
+		for (int i = 0; i < moduleSlot.length; i++)
+		{
+			if (moduleSlot[i] == NONE)
+				continue;
+			int row = moduleSlot[i] / cols;
+			int y = table.getSubjectYearId(i);
+			sameDay[y * days + dayOfRow[row]]++;
+			if (afternoon[row])
+				afternoons[y]++;
+		}
+	}
+
+	/**
+	 * Update the counts for a module leaving a slot.
+	 * @param m the id of the module.
+	 * @param s the index of the slot it is leaving.
+	 * @return the change in objective.
+	 */
+	private double leave(int m, int s)
+	{
+		int y = table.getSubjectYearId(m);
+		int row = s / cols;
+		double delta = -SEAT_WEIGHT * (slots[s].getSize() - table.getSize(m));
+		// removing one of c modules removes c - 1 pairs
+		delta -= SAME_DAY_WEIGHT * --sameDay[y * days + dayOfRow[row]];
+		if (afternoon[row])
+			delta -= AFTERNOON_WEIGHT * --afternoons[y];
+		return delta;
+	}
+
+	/**
+	 * Update the counts for a module entering a slot.
+	 * @param m the id of the module.
+	 * @param s the index of the slot it is entering.
+	 * @return the change in objective.
+	 */
+	private double enter(int m, int s)
+	{
+		int y = table.getSubjectYearId(m);
+		int row = s / cols;
+		double delta = SEAT_WEIGHT * (slots[s].getSize() - table.getSize(m));
+		// adding a module to c others adds c pairs
+		delta += SAME_DAY_WEIGHT * sameDay[y * days + dayOfRow[row]]++;
+		if (afternoon[row])
+			delta += AFTERNOON_WEIGHT * afternoons[y]++;
+		return delta;
+	}
+}
@@ -0,0 +1,498 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Repairs the timetable after a module is pinned into a slot by hand,
+ * moving as few other modules as possible. Pinning a module takes out of
+ * their slots the module already in the slot, and any module of the same
+ * subject and year, or sharing its students, at the same time. Each of
+ * these is then found a new slot by the shortest ejection chain: it goes
+ * into a free valid slot if there is one, otherwise into a slot blocked by
+ * a single module, which is itself moved on in the same way, up to a
+ * bounded depth. Chains are searched shortest first, so the fewest modules
+ * are moved, and the search gives up after a bounded number of steps so
+ * that it always answers quickly.
+ * <p>
+ * Pinned modules are never moved by a repair, unless they are in the way of
+ * a newer pin, which unpins them. The chains are worked out on a copy of
+ * the schedule, then made in the model one move at a time, each checked by
+ * the model's rules, in a single batch of changes. A displaced module for
+ * which no chain is found is left unscheduled.
+ */
+public class ScheduleRepairer {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** Entry of the copy of the schedule for an empty slot or unscheduled module. */
+	private final static int NONE = -1;
+
+	/** The most modules moved on by the chain for one displaced module. */
+	private final static int MAX_DEPTH = 3;
+
+	/** The most ejections tried by one repair, so it always answers quickly. */
+	private final static int MAX_STEPS = 10000;
+
+	/** Time taken by each pin and repair. */
+	private final static LatencyTimer REPAIR_TIMER = Metrics.timer("repair.pin");
+
+	/** The model to repair. */
+	private ProgramModel model;
+
+	/** The details of the modules. */
+	private ModuleTable table;
+
+	/** The slots of the timetable. */
+	private Slot[][] slots;
+
+	/** Number of rooms. */
+	private int cols;
+
+	/** Number of subject years. */
+	private int years;
+
+	/** The distinct room capacities, smallest first. */
+	private int[] capacities;
+
+	/** The capacity class of each column of the timetable. */
+	private int[] classOfColumn;
+
+	/** Whether each module is pinned, by id. */
+	private boolean[] pinned;
+
+	/** Copy of the schedule: the module in each slot, or NONE, by slot index. */
+	private int[] slotModule;
+
+	/** Copy of the reverse: the slot index of each module, or NONE, by id. */
+	private int[] moduleSlot;
+
+	/** Number of modules of each subject year at each time, at time * years + year. */
+	private int[] yearCount;
+
+	/** Number of free rooms of each class at each time, at time * classes + class. */
+	private int[] free;
+
+	/** The modules which share students, or null if there are none. */
+	private ConflictGraph conflicts;
+
+	/** Copy of the bitset of the ids of the modules at each time, kept if there are conflicts. */
+	private long[][] atTime;
+
+	/** Whether each module has been moved by the current repair, by id. */
+	private boolean[] moved;
+
+	/** The moves of the current repair, as (module, from, to) triples of ints. */
+	private int[] moves = new int[48];
+
+	/** Number of ints in use in moves. */
+	private int moveCount;
+
+	/** Number of ejections tried by the current repair. */
+	private int steps;
+
+	/** The modules moved by the last repair, other than the pinned module. */
+	private ArrayList<Module> movedModules = new ArrayList<Module>();
+
+	/** The modules left unscheduled by the last repair. */
+	private ArrayList<Module> unplaced = new ArrayList<Module>();
+
+	//================================================================================
+    // Constructor
+    //================================================================================
+
+	/**
+	 * Instantiate a repairer for a given model, with no modules pinned.
+	 * @param model the model to repair.
+	 */
+	public ScheduleRepairer(ProgramModel model)
+	{
+		this.model = model;
+		this.table = model.getModuleTable();
+		this.slots = model.getSlots();
+		cols = slots[0].length;
+		years = table.getSubjectYearCount();
+		pinned = new boolean[table.size()];
+		capacities = model.getCapacities();
+		classOfColumn = model.getCapacityClasses();
+	}
+
+	//================================================================================
+    // Get methods
+    //================================================================================
+
+	/**
+	 * Check whether a module is pinned.
+	 * @param module the module.
+	 * @return true if repairs will not move it.
+	 */
+	public boolean isPinned(Module module)
+	{
+		return pinned[module.getId()];
+	}
+
+	/**
+	 * Get the modules moved by the last repair to make way for the pinned
+	 * module.
+	 * @return the modules, in the order they were moved.
+	 */
+	public List<Module> getMoved()
+	{
+		return movedModules;
+	}
+
+	/**
+	 * Get the modules which the last repair took out of their slots and
+	 * could not find a new slot for.
+	 * @return the modules, now unscheduled.
+	 */
+	public List<Module> getUnplaced()
+	{
+		return unplaced;
+	}
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Let repairs move a module again.
+	 * @param module the module.
+	 */
+	public void unpin(Module module)
+	{
+		pinned[module.getId()] = false;
+	}
+
+	/**
+	 * Pin a module into a slot, whether or not the slot is free, and repair
+	 * the modules this displaces. The module must fit in the room.
+	 * @param module the module to pin.
+	 * @param slot the slot to pin it in.
+	 * @return false if the room is too small, or the model changed while the
+	 * repair was being made, in which case the modules listed by getUnplaced
+	 * are left unscheduled.
+	 */
+	public boolean pin(Module module, Slot slot)
+	{
+		long start = Metrics.start();
+		boolean pinnedModule = repair(module.getId(), slot.getIndex());
+		REPAIR_TIMER.stop(start);
+		return pinnedModule;
+	}
+
+	/**
+	 * Pin and repair, for pin.
+	 * @param m the id of the module to pin.
+	 * @param s the index of the slot.
+	 * @return false if the module could not be pinned.
+	 */
+	private boolean repair(int m, int s)
+	{
+		movedModules.clear();
+		unplaced.clear();
+		if (table.getSize(m) > capacity(s))
+			return false;
+		snapshot();
+		moveCount = 0;
+		steps = 0;
+
+		// take out of their slots the module in the slot and any module 
+		// clashing with it at the time, then put the module in
+		int t = s / cols;
+		ArrayList<Integer> displaced = new ArrayList<Integer>();
+		for (int i = t * cols; i < (t + 1) * cols; i++)
+		{
+			int other = slotModule[i];
+			if (other != NONE && other != m && (i == s || clash(m, other)))
+			{
+				move(other, NONE);
+				moved[other] = true;
+				pinned[other] = false;
+				displaced.add(other);
+			}
+		}
+		move(m, s);
+		moved[m] = true;
+
+		// find each displaced module the shortest chain which places it
+		for (int i = 0; i < displaced.size(); i++)
+		{
+			int d = displaced.get(i);
+			boolean placed = false;
+			for (int depth = 0; depth <= MAX_DEPTH && !placed && steps < MAX_STEPS; depth++)
+				placed = relocate(d, depth);
+			if (!placed)
+				unplaced.add(table.getModule(d));
+		}
+		boolean applied = apply(m);
+		pinned[m] = model.slotForModule(table.getModule(m)) == slotAt(s);
+		return applied;
+	}
+
+	/**
+	 * Copy the schedule from the model.
+	 */
+	private void snapshot()
+	{
+		int n = table.size();
+		slotModule = new int[slots.length * cols];
+		moduleSlot = new int[n];
+		yearCount = new int[slots.length * years];
+		free = new int[slots.length * capacities.length];
+		moved = new boolean[n];
+		conflicts = model.getConflictGraph();
+		atTime = conflicts == null ? null : new long[slots.length][(n + 63) / 64];
+		Arrays.fill(slotModule, NONE);
+		Arrays.fill(moduleSlot, NONE);
+		for (int t = 0; t < slots.length; t++)
+			for (int j = 0; j < cols; j++)
+			{
+				Module module = model.moduleInSlot(slots[t][j]);
+				if (module == null)
+				{
+					free[t * capacities.length + classOfColumn[j]]++;
+					continue;
+				}
+				int id = module.getId();
+				slotModule[t * cols + j] = id;
+				moduleSlot[id] = t * cols + j;
+				yearCount[t * years + table.getSubjectYearId(id)]++;
+				if (atTime != null)
+					atTime[t][id >>> 6] |= 1L << id;
+			}
+	}
+
+	/**
+	 * Find a slot for an unscheduled module in the copy, moving on at most
+	 * depth other modules in a chain. On success the moves are left made.
+	 * @param m the id of the module.
+	 * @param depth the most modules which may be moved on.
+	 * @return true if the module was placed.
+	 */
+	private boolean relocate(int m, int depth)
+	{
+		int size = table.getSize(m);
+		int y = table.getSubjectYearId(m);
+
+		// a free valid slot needs no chain; take the smallest room which 
+		// fits, at the earliest time it is free
+		int classes = capacities.length;
+		int smallest = 0;
+		while (smallest < classes && capacities[smallest] < size)
+			smallest++;
+		for (int c = smallest; c < classes; c++)
+			for (int t = 0; t < slots.length; t++)
+				if (free[t * classes + c] > 0 && yearCount[t * years + y] == 0 
+						&& !studentsAt(m, t))
+				{
+					int j = 0;
+					while (classOfColumn[j] != c || slotModule[t * cols + j] != NONE)
+						j++;
+					move(m, t * cols + j);
+					return true;
+				}
+		if (depth == 0)
+			return false;
+
+		// otherwise try each slot blocked by a single module which can be moved
+		for (int s = 0; s < slotModule.length && steps < MAX_STEPS; s++)
+		{
+			if (size > capacity(s))
+				continue;
+			int blocker = blocker(s, m);
+			if (blocker == NONE || moved[blocker] || pinned[blocker])
+				continue;
+			steps++;
+			int mark = moveCount;
+			moved[blocker] = true;
+			move(blocker, NONE);
+			move(m, s);
+			if (relocate(blocker, depth - 1))
+				return true;
+			undo(mark);
+			moved[blocker] = false;
+		}
+		return false;
+	}
+
+	/**
+	 * Find the single module which stops a module going into a slot: the 
+	 * module in the slot, or the module clashing with it at the time, if it
+	 * is the only one and the slot is free.
+	 * @param s the slot index.
+	 * @param m the id of the module.
+	 * @return the blocking module, or NONE if nothing or more than one
+	 * module blocks the slot.
+	 */
+	private int blocker(int s, int m)
+	{
+		int t = s / cols;
+		int clashes = yearCount[t * years + table.getSubjectYearId(m)];
+		int occupant = slotModule[s];
+		if (clashes == 0 && !studentsAt(m, t))
+			return occupant;
+		if (clashes > 1)
+			return NONE;
+		// the module clashing with it at the time
+		int clash = NONE;
+		for (int i = t * cols; i < (t + 1) * cols; i++)
+			if (slotModule[i] != NONE && clash(m, slotModule[i]))
+			{
+				if (clash != NONE)
+					return NONE;
+				clash = slotModule[i];
+			}
+		return occupant == NONE || occupant == clash ? clash : NONE;
+	}
+
+	/**
+	 * Check whether two modules may not be at the same time, being of the
+	 * same subject and year or sharing students.
+	 * @param a the id of one module.
+	 * @param b the id of the other.
+	 * @return true if they clash.
+	 */
+	private boolean clash(int a, int b)
+	{
+		return table.getSubjectYearId(a) == table.getSubjectYearId(b)
+				|| (conflicts != null && conflicts.conflicts(a, b));
+	}
+
+	/**
+	 * Check whether a module shares students with a module at a time in the copy.
+	 * @param m the id of the module.
+	 * @param t the time.
+	 * @return true if it does.
+	 */
+	private boolean studentsAt(int m, int t)
+	{
+		return atTime != null && conflicts.intersects(m, atTime[t]);
+	}
+
+	/**
+	 * Move a module in the copy, recording the move so it can be undone and
+	 * made in the model.
+	 * @param m the id of the module.
+	 * @param to the slot index, or NONE to unschedule it.
+	 */
+	private void move(int m, int to)
+	{
+		int from = moduleSlot[m];
+		if (from != NONE)
+			take(m, from);
+		if (to != NONE)
+			put(m, to);
+		if (moveCount + 3 > moves.length)
+			moves = Arrays.copyOf(moves, moves.length * 2);
+		moves[moveCount++] = m;
+		moves[moveCount++] = from;
+		moves[moveCount++] = to;
+	}
+
+	/**
+	 * Undo the moves made in the copy since a given point.
+	 * @param mark the number of ints in use in moves at that point.
+	 */
+	private void undo(int mark)
+	{
+		while (moveCount > mark)
+		{
+			int to = moves[--moveCount];
+			int from = moves[--moveCount];
+			int m = moves[--moveCount];
+			if (to != NONE)
+				take(m, to);
+			if (from != NONE)
+				put(m, from);
+		}
+	}
+
+	/**
+	 * Put a module into an empty slot of the copy.
+	 * @param m the id of the module.
+	 * @param s the slot index.
+	 */
+	private void put(int m, int s)
+	{
+		slotModule[s] = m;
+		moduleSlot[m] = s;
+		yearCount[(s / cols) * years + table.getSubjectYearId(m)]++;
+		if (atTime != null)
+			atTime[s / cols][m >>> 6] |= 1L << m;
+		free[(s / cols) * capacities.length + classOfColumn[s % cols]]--;
+	}
+
+	/**
+	 * Take a module out of its slot in the copy.
+	 * @param m the id of the module.
+	 * @param s the slot index.
+	 */
+	private void take(int m, int s)
+	{
+		slotModule[s] = NONE;
+		moduleSlot[m] = NONE;
+		yearCount[(s / cols) * years + table.getSubjectYearId(m)]--;
+		if (atTime != null)
+			atTime[s / cols][m >>> 6] &= ~(1L << m);
+		free[(s / cols) * capacities.length + classOfColumn[s % cols]]++;
+	}
+
+	/**
+	 * Make the moves worked out in the copy in the model, in order, as one
+	 * batch of changes. Each move only goes ahead if its module is still
+	 * where the copy expects, and the move keeps to the rules.
+	 * @param m the id of the pinned module.
+	 * @return false if a move could not be made, which stops the rest.
+	 */
+	private boolean apply(int m)
+	{
+		model.beginBatch();
+		try {
+			for (int i = 0; i < moveCount; i += 3)
+			{
+				Module module = table.getModule(moves[i]);
+				Slot from = slotAt(moves[i + 1]);
+				Slot to = slotAt(moves[i + 2]);
+				boolean done = to == null
+						? model.tryRemove(module, from)
+						: model.tryMove(module, from, to);
+				if (!done)
+				{
+					// the model has changed, so report what is left unscheduled
+					unplaced.clear();
+					for (int j = 0; j < moveCount; j += 3)
+						if (moves[j + 2] == NONE && model.slotForModule(table.getModule(moves[j])) == null)
+							unplaced.add(table.getModule(moves[j]));
+					return false;
+				}
+				if (moves[i] != m && to != null && !movedModules.contains(module))
+					movedModules.add(module);
+			}
+			return true;
+		} finally {
+			model.endBatch();
+		}
+	}
+
+	/**
+	 * Get the slot with a given index.
+	 * @param s the slot index, or NONE.
+	 * @return the slot, or null for NONE.
+	 */
+	private Slot slotAt(int s)
+	{
+		return s == NONE ? null : slots[s / cols][s % cols];
+	}
+
+	/**
+	 * Get the capacity of the room of a slot.
+	 * @param s the slot index.
+	 * @return the number of seats.
+	 */
+	private int capacity(int s)
+	{
+		return slots[0][s % cols].getSize();
+	}
+}
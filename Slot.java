@@ -11,6 +11,15 @@ class Slot
 	
 	/** The capacity of the slot. */
 	private int size;
+	
+	/** The row of the slot in the timetable, i.e. the index of its time. */
+	private int row;
+	
+	/** The column of the slot in the timetable, i.e. the index of its room. */
+	private int column;
+	
+	/** The dense index of the slot, counting along each row in turn. */
+	private int index;
 
 	/**
 	 * Get the time of the slot. 
@@ -38,17 +47,50 @@ class Slot
 	{
 		return size;
 	}
+	
+	/**
+	 * Get the row of the slot in the timetable.
+	 * @return the index of the slot's time.
+	 */
+	public int getRow()
+	{
+		return row;
+	}
+	
+	/**
+	 * Get the column of the slot in the timetable.
+	 * @return the index of the slot's room.
+	 */
+	public int getColumn()
+	{
+		return column;
+	}
+	
+	/**
+	 * Get the dense index of the slot, which is row * columns + column.
+	 * @return the index.
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
 
 	/**
 	 * Instantiate a slot from a given time name and capacity.
 	 * @param time the time.
 	 * @param name the name.
 	 * @param size the capacity.
+	 * @param row the index of the time.
+	 * @param column the index of the room.
+	 * @param index the dense index of the slot.
 	 */
-	public Slot(String time, String name, int size)
+	public Slot(String time, String name, int size, int row, int column, int index)
 	{
 		this.time = time;
 		this.name = name;
 		this.size = size;
+		this.row = row;
+		this.column = column;
+		this.index = index;
 	}
 }
\ No newline at end of file
@@ -1,223 +1,399 @@
 import javax.swing.*;
-import javax.swing.border.EmptyBorder;
-import javax.swing.border.LineBorder;
-import javax.swing.text.SimpleAttributeSet;
-import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
 
 import java.util.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 
 /**
- * Class for the timetable component of the GUI. Contains methods to
- * update cells based on user input, and a button for each slot.
+ * Class for the timetable component of the GUI. The whole grid, with
+ * its room and time labels, is painted by this one component from the
+ * text and colour held for each slot, and clicks are mapped to slots
+ * arithmetically. Changing a slot repaints just that slot's cell, so
+ * large grids stay responsive.
  */
 @SuppressWarnings("serial")
-class TimetableView extends JPanel
+class TimetableView extends JPanel implements Scrollable
 {
 	//================================================================================
     // Properties
     //================================================================================
-	
-	/** HashMap allowing buttons to be looked up via slots. */
-	private HashMap<Slot, JButton> buttons = new HashMap<Slot, JButton>();
-	
+
+	/**
+	 * Listener which is told when a slot in the view is pressed.
+	 */
+	public interface SlotPressedListener
+	{
+		/**
+		 * Called when a slot is pressed.
+		 * @param slot the slot.
+		 * @param pin whether shift was held, to pin the selected module there.
+		 */
+		void slotPressed(Slot slot, boolean pin);
+	}
+
+	/** The slots of the timetable. */
+	private Slot[][] slots;
+
+	/** Number of times, i.e. rows of slots. */
+	private int rows;
+
+	/** Number of rooms, i.e. columns of slots. */
+	private int cols;
+
+	/** The text of each slot, by slot index. */
+	private String[] text;
+
+	/** The colour of each slot, by slot index. */
+	private Color[] colors;
+
+	/** Indices of the slots which are currently highlighted. */
+	private int[] highlighted = new int[0];
+
+	/** The listeners told when a slot is pressed. */
+	private ArrayList<SlotPressedListener> listeners = new ArrayList<SlotPressedListener>();
+
 	/** The colour to turn valid slots in the timetable when a module is selected. */
 	private final Color HIGHLIGHT_COLOR = new Color(0xBBDEFB);
-	
+
 	/** The colour to turn slots which have a module scheduled in them. */
 	private final Color SCHEDULED_COLOR = new Color(0x1976D2);
-	
+
 	/** The background colour of the timetable. */
 	private final Color BACKGROUND_COLOR = new Color(0xA0BAD6);
-	
+
 	/** The color of the borders of the slots of the timetable. */
 	private final Color BORDER_COLOR = new Color(0x889db3);
-	
+
+	/** The colour of slot text while the timetable is disabled. */
+	private final Color DISABLED_COLOR = new Color(0x8A8A8A);
+
+	/** The font of all text in the timetable. */
+	private final Font FONT = new Font("Arial", Font.BOLD, 15);
+
+	/** The smallest width of a cell, beyond which the timetable scrolls. */
+	private final static int MIN_CELL_WIDTH = 60;
+
+	/** The smallest height of a cell, beyond which the timetable scrolls. */
+	private final static int MIN_CELL_HEIGHT = 40;
+
 	//================================================================================
     // Constructor and helper methods
     //================================================================================
-	
+
 	/**
-	 * Instantiate the timetable view, by setting the layout, and adding buttons
-	 * and labels.
+	 * Instantiate the timetable view for a grid of slots, all initially
+	 * blank.
 	 * @param slots the 2D array of {@link Slot}s in the timetable.
 	 */
 	public TimetableView(Slot[][] slots)
 	{
-		// Initialize the panel with a grid layout.
-		// (extra row above and to the left for labels)
-		super(new GridLayout(slots.length + 1, slots[0].length + 1));
+		this.slots = slots;
+		rows = slots.length;
+		cols = slots[0].length;
+		text = new String[rows * cols];
+		colors = new Color[rows * cols];
+		Arrays.fill(text, "");
+		Arrays.fill(colors, Color.WHITE);
 
 		setBackground(BACKGROUND_COLOR);
-		
-		int rows = slots.length;
-		int cols = slots[0].length;
-		
-		// When adding to a GridLayout, components fill along the row first.
-		// Put blank JLabel in top left.
-		this.add(new JLabel());
-				
-		// Add labels at the top for room names and sizes.
-		for (int i = 0; i < cols; i++)
-			addTopLabel(slots[0][i].getName() + "\n" + slots[0][i].getSize());
-		
-		// Fill out remaining rows with label on left, then buttons
-		// To do this: loop through the rows
-		for (int i = 0; i < rows; i++)
-		{
-			// Add JLabel to the left of each row.
-			addLeftLabel(slots[i][0].getTime());
-			
-			// then fill out the rest of the row with buttons
-			for (int j = 0; j < cols; j++)
-				addSlotButton(slots[i][j]);
-		}
-		
-		// buttons disabled when program begins
+		setFont(FONT);
+		setPreferredSize(new Dimension(
+				(cols + 1) * MIN_CELL_WIDTH, (rows + 1) * MIN_CELL_HEIGHT));
+		setupMouseListener();
+
+		// slots disabled when program begins
 		setButtonsEnabled(false);
 	}
-	
-	/**
-	 * Adds a {@link JTextPane} label to the grid layout.
-	 * This is used as it enabled multi-line text.
-	 * @param text the text to display in the label.
-	 */
-	private void addTopLabel(String text)
-	{
-		// create text pane
-		JTextPane label = new JTextPane();
-		label.setText(text);
-		
-		// set the text to be centered
-		StyledDocument doc = label.getStyledDocument();
-		SimpleAttributeSet center = new SimpleAttributeSet();
-		StyleConstants.setAlignment(center, StyleConstants.ALIGN_CENTER);
-		doc.setParagraphAttributes(0, doc.getLength(), center, false);
-		
-		// set colour and other properties of label, and add to layout
-		label.setForeground(Color.WHITE);
-		label.setEditable(false);
-		label.setHighlighter(null);
-		label.setBackground(BACKGROUND_COLOR);
-		label.setFont(new Font("Arial", Font.BOLD, 15));
-		this.add(label);
-	}
-	
-	/**
-	 * Adds a {@link JLabel} to the grid layout, with right aligned text.
-	 * @param text the text to display on the label.
-	 */
-	private void addLeftLabel(String text)
-	{
-		// create label with given text right aligned
-		JLabel label = new JLabel(text, SwingConstants.RIGHT);
-		
-		// add invisible border so text has space
-		label.setBorder(new EmptyBorder(10, 10, 10, 10));
-		
-		// set colour and font, and add to layout
-		label.setForeground(Color.WHITE);
-		label.setFont(new Font("Arial", Font.BOLD, 15));
-		this.add(label);
-	}
-	
-	/**
-	 * Adds a button to the layout, storing a reference to its appropriate {@link Slot}
-	 * alongside it.
-	 * @param slot the {@link Slot} for the button.
-	 */
-	private void addSlotButton(Slot slot)
-	{
-		// create button
-		JButton button = new JButton();
-		
-		// set style of button
-		button.setBackground(Color.WHITE);
-		button.setForeground(Color.WHITE);
-		button.setBorder(new LineBorder(BORDER_COLOR, 1));
-		button.setFont(new Font("Arial", Font.BOLD, 15));
-		button.setFocusPainted(false);
-		
-		// add to buttons HashMap so button can be looked up via slot, then add to 
-		// layout
-		buttons.put(slot, button);
-		this.add(button);
-	}
-	
+
+	/**
+	 * Tell the listeners when a slot is clicked while the view is enabled.
+	 */
+	private void setupMouseListener()
+	{
+		addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				if (!isEnabled())
+					return;
+				// the labels take up column and row -1
+				int col = e.getX() * (cols + 1) / getWidth() - 1;
+				int row = e.getY() * (rows + 1) / getHeight() - 1;
+				if (row < 0 || col < 0 || row >= rows || col >= cols)
+					return;
+				for (int i = 0; i < listeners.size(); i++)
+					listeners.get(i).slotPressed(slots[row][col], e.isShiftDown());
+			}
+		});
+	}
+
+	//================================================================================
+    // Painting methods
+    //================================================================================
+
+	/**
+	 * Get the x coordinate of the left of a column, where -1 is the labels.
+	 * @param col the column.
+	 * @return the x coordinate.
+	 */
+	private int columnX(int col)
+	{
+		return (col + 1) * getWidth() / (cols + 1);
+	}
+
+	/**
+	 * Get the y coordinate of the top of a row, where -1 is the labels.
+	 * @param row the row.
+	 * @return the y coordinate.
+	 */
+	private int rowY(int row)
+	{
+		return (row + 1) * getHeight() / (rows + 1);
+	}
+
+	/**
+	 * Get the bounds of the cell for a slot.
+	 * @param slot the slot.
+	 * @return the bounding rectangle.
+	 */
+	private Rectangle cellBounds(Slot slot)
+	{
+		int x = columnX(slot.getColumn());
+		int y = rowY(slot.getRow());
+		return new Rectangle(x, y,
+				columnX(slot.getColumn() + 1) - x, rowY(slot.getRow() + 1) - y);
+	}
+
+	/**
+	 * Paint the labels and the cells which intersect the area being painted.
+	 * @param g the graphics context.
+	 */
+	protected void paintComponent(Graphics g)
+	{
+		super.paintComponent(g);
+		Graphics2D g2 = (Graphics2D) g;
+		g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		FontMetrics fm = g.getFontMetrics();
+
+		// work out the rows and columns which need painting
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		int firstCol = Math.max(-1, clip.x * (cols + 1) / Math.max(getWidth(), 1) - 1);
+		int lastCol = Math.min(cols - 1, (clip.x + clip.width) * (cols + 1) / Math.max(getWidth(), 1));
+		int firstRow = Math.max(-1, clip.y * (rows + 1) / Math.max(getHeight(), 1) - 1);
+		int lastRow = Math.min(rows - 1, (clip.y + clip.height) * (rows + 1) / Math.max(getHeight(), 1));
+
+		for (int i = firstRow; i <= lastRow; i++)
+			for (int j = firstCol; j <= lastCol; j++)
+			{
+				int x = columnX(j);
+				int y = rowY(i);
+				int w = columnX(j + 1) - x;
+				int h = rowY(i + 1) - y;
+
+				// the top left corner is blank
+				if (i < 0 && j < 0)
+					continue;
+
+				// room names and sizes along the top
+				if (i < 0)
+				{
+					g.setColor(Color.WHITE);
+					int top = y + (h - 2 * fm.getHeight()) / 2 + fm.getAscent();
+					drawCentred(g, fm, slots[0][j].getName(), x, w, top);
+					drawCentred(g, fm, "" + slots[0][j].getSize(), x, w, top + fm.getHeight());
+					continue;
+				}
+
+				// times down the left, right aligned
+				if (j < 0)
+				{
+					g.setColor(Color.WHITE);
+					String time = slots[i][0].getTime();
+					g.drawString(time, x + w - 10 - fm.stringWidth(time),
+							y + (h - fm.getHeight()) / 2 + fm.getAscent());
+					continue;
+				}
+
+				// the slot itself, with its colour, border and text
+				int index = slots[i][j].getIndex();
+				g.setColor(colors[index]);
+				g.fillRect(x, y, w, h);
+				g.setColor(BORDER_COLOR);
+				g.drawRect(x, y, w - 1, h - 1);
+				if (!text[index].isEmpty())
+				{
+					g.setColor(isEnabled() ? Color.WHITE : DISABLED_COLOR);
+					drawCentred(g, fm, text[index], x, w,
+							y + (h - fm.getHeight()) / 2 + fm.getAscent());
+				}
+			}
+	}
+
+	/**
+	 * Draw a string centred horizontally in a cell.
+	 * @param g the graphics context.
+	 * @param fm the metrics of the font.
+	 * @param s the string.
+	 * @param x the left of the cell.
+	 * @param w the width of the cell.
+	 * @param baseline the y coordinate of the baseline.
+	 */
+	private void drawCentred(Graphics g, FontMetrics fm, String s, int x, int w, int baseline)
+	{
+		g.drawString(s, x + (w - fm.stringWidth(s)) / 2, baseline);
+	}
+
+	//================================================================================
+    // Scrollable methods
+    //================================================================================
+
+	/**
+	 * Get the preferred size of the viewport, which is the preferred size
+	 * up to the size of the standard grid, so a large grid does not ask
+	 * for a huge window.
+	 * @return the preferred viewport size.
+	 */
+	public Dimension getPreferredScrollableViewportSize()
+	{
+		Dimension d = getPreferredSize();
+		return new Dimension(Math.min(d.width, 9 * MIN_CELL_WIDTH), 
+				Math.min(d.height, 11 * MIN_CELL_HEIGHT));
+	}
+
+	/**
+	 * Scroll by one cell at a time.
+	 */
+	public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction)
+	{
+		return orientation == SwingConstants.VERTICAL ? MIN_CELL_HEIGHT : MIN_CELL_WIDTH;
+	}
+
+	/**
+	 * Scroll by a screen at a time.
+	 */
+	public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction)
+	{
+		return orientation == SwingConstants.VERTICAL ? visible.height : visible.width;
+	}
+
+	/**
+	 * Fill the width of the viewport while the cells are wide enough.
+	 */
+	public boolean getScrollableTracksViewportWidth()
+	{
+		return getParent() instanceof JViewport
+				&& getParent().getWidth() >= getPreferredSize().width;
+	}
+
+	/**
+	 * Fill the height of the viewport while the cells are tall enough.
+	 */
+	public boolean getScrollableTracksViewportHeight()
+	{
+		return getParent() instanceof JViewport
+				&& getParent().getHeight() >= getPreferredSize().height;
+	}
+
 	//================================================================================
     // Program methods
     //================================================================================
-	
+
 	/**
-	 * Returns the {@link JButton} corresponding to a given slot in the timetable.
-	 * @param slot the {@link Slot} in the timetable.
-	 * @return the {@link JButton}.
+	 * Add a listener to be told when a slot is pressed.
+	 * @param listener the listener.
 	 */
-	public JButton getButtonAtSlot(Slot slot)
+	public void addSlotPressedListener(SlotPressedListener listener)
 	{
-		return buttons.get(slot);
+		listeners.add(listener);
 	}
-	
+
 	/**
-	 * Set the text of the button in a given {@link Slot}.
-	 * @param slot the {@link Slot} to which the button corresponds.
-	 * @param text the text which the button should display.
+	 * Set the text of a given {@link Slot}.
+	 * @param slot the {@link Slot}.
+	 * @param text the text which the slot should display.
 	 */
 	public void setSlotText(Slot slot, String text)
 	{
-		buttons.get(slot).setText(text);
+		this.text[slot.getIndex()] = text;
+		repaint(cellBounds(slot));
 	}
-	
+
 	/**
-	 * Set the background colour of a slot button to the colour which 
+	 * Empty a slot, clearing its text and turning it white.
+	 * @param slot the {@link Slot} to clear.
+	 */
+	public void clearSlot(Slot slot)
+	{
+		setSlotText(slot, "");
+		setSlotColor(slot, Color.WHITE);
+	}
+
+	/**
+	 * Set the background colour of a slot to the colour which
 	 * represents a scheduled module.
 	 * @param slot the {@link Slot} to change.
 	 */
 	public void setSlotScheduledColor(Slot slot)
 	{
-		buttons.get(slot).setBackground(SCHEDULED_COLOR);
+		setSlotColor(slot, SCHEDULED_COLOR);
 	}
-	
+
 	/**
-	 * Given an array of {@link Slot}s, turn their corresponding
-	 * buttons the highlight colour, which represents valid slots
-	 * for a module to be placed into.
+	 * Given an array of {@link Slot}s, turn them the highlight colour,
+	 * which represents valid slots for a module to be placed into.
 	 * @param list the array of {@link Slot}s.
 	 */
 	public void highlightSlots(Slot[] list)
 	{
-		// loop through the provided slots
+		// remember which slots are highlighted, so they can be cleared
+		// without looking at every slot
+		int n = highlighted.length;
+		highlighted = Arrays.copyOf(highlighted, n + list.length);
 		for (int i = 0; i < list.length; i++)
 		{
-			// look up button and highlight it
-			buttons.get(list[i]).setBackground(HIGHLIGHT_COLOR);
+			highlighted[n + i] = list[i].getIndex();
+			setSlotColor(list[i], HIGHLIGHT_COLOR);
 		}
 	}
-	
+
 	/**
-	 * Turn the background of all highlighted slot buttons back to white.
+	 * Turn the background of all highlighted slots back to white.
 	 */
 	public void clearHighlights()
 	{
-		// loop through buttons and change background to white if it
-		// is currently the highlight colour
-		JButton[] b = buttons.values().toArray(new JButton[0]);
-		for (int i = 0; i < b.length; i++)
-			if (b[i].getBackground() == HIGHLIGHT_COLOR)
-				b[i].setBackground(Color.WHITE);
-			
+		// change each highlighted slot back to white if it is still
+		// the highlight colour
+		for (int i = 0; i < highlighted.length; i++)
+		{
+			Slot slot = slots[highlighted[i] / cols][highlighted[i] % cols];
+			if (colors[highlighted[i]] == HIGHLIGHT_COLOR)
+				setSlotColor(slot, Color.WHITE);
+		}
+		highlighted = new int[0];
 	}
-	
+
 	/**
-	 * Toggle whether the slot buttons are enabled or disabled.
-	 * @param enabled whether the buttons should be enabled or disabled.
+	 * Toggle whether the slots are enabled or disabled.
+	 * @param enabled whether the slots should be enabled or disabled.
 	 */
 	public void setButtonsEnabled(boolean enabled)
 	{
-		// loop through buttons and toggle enabled
-		JButton[] b = buttons.values().toArray(new JButton[0]);
-		for (int i = 0; i < b.length; i++)
-			b[i].setEnabled(enabled);
+		setEnabled(enabled);
+		repaint();
+	}
+
+	/**
+	 * Set the colour of a slot, repainting it if it has changed.
+	 * @param slot the slot.
+	 * @param color the new colour.
+	 */
+	private void setSlotColor(Slot slot, Color color)
+	{
+		if (colors[slot.getIndex()] == color)
+			return;
+		colors[slot.getIndex()] = color;
+		repaint(cellBounds(slot));
 	}
-}
\ No newline at end of file
+}
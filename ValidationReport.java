@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Report of the problems found in a module file as it is loaded: lines
+ * which cannot be read, and pre-assigned slots which are unknown, taken, too
+ * small or clash with another module of the same subject and year, or one
+ * sharing its students. Every problem is recorded with its line number; a
+ * module whose line has a problem is left unscheduled. The lines of an
+ * enrolment file which cannot be read are reported in the same way.
+ */
+public class ValidationReport {
+
+	//================================================================================
+    // Properties
+    //================================================================================
+
+	/** The kinds of problem. */
+	public enum Kind
+	{
+		/** The line is not "code name time room size". */
+		MALFORMED,
+		/** The module has the same code as an earlier line. */
+		DUPLICATE_CODE,
+		/** The time is not one of the times of the timetable. */
+		UNKNOWN_TIME,
+		/** The room is not one of the rooms of the timetable. */
+		UNKNOWN_ROOM,
+		/** Only one of the time and room is given. */
+		INCOMPLETE_SLOT,
+		/** An earlier line already has the slot. */
+		SLOT_TAKEN,
+		/** The room has fewer seats than the module has students. */
+		TOO_SMALL,
+		/** An earlier line has a module of the same subject and year at the time. */
+		YEAR_CLASH,
+		/** An earlier line has a module sharing students with it at the time. */
+		STUDENT_CLASH
+	}
+
+	/**
+	 * A single problem on a line of the file.
+	 */
+	public static class Issue
+	{
+		/** The line number, counting from 1. */
+		private int line;
+
+		/** The kind of problem. */
+		private Kind kind;
+
+		/** Description of the problem. */
+		private String message;
+
+		/**
+		 * Instantiate an issue.
+		 * @param line the line number.
+		 * @param kind the kind of problem.
+		 * @param message description of the problem.
+		 */
+		Issue(int line, Kind kind, String message)
+		{
+			this.line = line;
+			this.kind = kind;
+			this.message = message;
+		}
+
+		/**
+		 * Get the line number of the problem.
+		 * @return the line number, counting from 1.
+		 */
+		public int getLine()
+		{
+			return line;
+		}
+
+		/**
+		 * Get the kind of problem.
+		 * @return the kind.
+		 */
+		public Kind getKind()
+		{
+			return kind;
+		}
+
+		/**
+		 * Get the description of the problem.
+		 * @return the description.
+		 */
+		public String getMessage()
+		{
+			return message;
+		}
+
+		/**
+		 * Describe the problem with its line number.
+		 * @return the description.
+		 */
+		public String toString()
+		{
+			return "line " + line + ": " + message;
+		}
+	}
+
+	/** The problems found, in the order found. */
+	private ArrayList<Issue> issues = new ArrayList<Issue>();
+
+	//================================================================================
+    // Program methods
+    //================================================================================
+
+	/**
+	 * Record a problem.
+	 * @param line the line number.
+	 * @param kind the kind of problem.
+	 * @param message description of the problem.
+	 */
+	void add(int line, Kind kind, String message)
+	{
+		issues.add(new Issue(line, kind, message));
+	}
+
+	/**
+	 * Sort the problems by line number, as malformed lines are found before
+	 * the rest.
+	 */
+	void sort()
+	{
+		Collections.sort(issues, new Comparator<Issue>() {
+			public int compare(Issue a, Issue b) {
+				return Integer.compare(a.line, b.line);
+			}
+		});
+	}
+
+	/**
+	 * Get the problems found.
+	 * @return the problems, in line order.
+	 */
+	public List<Issue> getIssues()
+	{
+		return Collections.unmodifiableList(issues);
+	}
+
+	/**
+	 * Check whether any problems were found.
+	 * @return true if the file had no problems.
+	 */
+	public boolean isEmpty()
+	{
+		return issues.isEmpty();
+	}
+
+	/**
+	 * Describe the first problems found, one per line, for showing to the
+	 * user.
+	 * @param limit the most problems to describe.
+	 * @return the description.
+	 */
+	public String summary(int limit)
+	{
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < issues.size() && i < limit; i++)
+			s.append(issues.get(i)).append('\n');
+		if (issues.size() > limit)
+			s.append("... and ").append(issues.size() - limit).append(" more\n");
+		return s.toString();
+	}
+}